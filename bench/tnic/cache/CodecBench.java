@@ -0,0 +1,73 @@
+package tnic.cache;
+
+import tnic.config.Env;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of encoding and decoding javascript source for memcache with plain
+ * Java serialization, as AppEngineMemcache used to, and with Codecs with
+ * compression off and on. The encoded size is printed by the setup:
+ *
+ *   ant bench -Dbench.args='CodecBench'
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CodecBench {
+    private static final String LINE =
+        "    var result = db.page(query, $argv.cursor, 20); // list items\n";
+
+    @Param({ "1024", "20480", "204800" })
+    public int size;
+
+    @Param({ "serialization", "codecs", "deflate" })
+    public String encoding;
+
+    private String value;
+    private byte[] encoded;
+
+    @Setup
+    public void setup () throws IOException {
+        StringBuilder sb = new StringBuilder(size + LINE.length());
+        for (int i = 0; sb.length() < size; i++) sb.append(i).append(LINE);
+        value = sb.substring(0, size);
+        Env.CACHE_COMPRESSION_THRESHOLD = "deflate".equals(encoding) ? 16384 : 0;
+        encoded = encode();
+        System.out.println(encoding +" "+ size +": "+ encoded.length +" bytes");
+    }
+
+    @Benchmark
+    public byte[] encode () throws IOException {
+        if (!"serialization".equals(encoding)) return Codecs.encode(value);
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bos);
+        out.writeObject(value);
+        out.close();
+        return bos.toByteArray();
+    }
+
+    /* serialized values take the legacy path of Codecs.decode */
+    @Benchmark
+    public Object decode () throws IOException {
+        return Codecs.decode(encoded);
+    }
+}
@@ -0,0 +1,95 @@
+package tnic.fs;
+
+import tnic.config.Env;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.concurrent.TimeUnit;
+import javax.servlet.ServletContext;
+
+import com.newatlanta.commons.vfs.provider.gae.GaeVFS;
+import org.apache.commons.vfs.FileObject;
+import org.apache.commons.vfs.FileSystemException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of resolving the files of a request the way TnicFileSystem used to,
+ * clearing the GaeVFS cache after every request, and through FileCache,
+ * which keeps the resolved FileObjects across requests:
+ *
+ *   ant bench -Dbench.args='FileCacheBench'
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FileCacheBench {
+    private static final int FILES = 16;
+
+    private String[] paths;
+
+    @Setup
+    public void setup () throws IOException {
+        final File root = File.createTempFile("tnic", "bench");
+        root.delete();
+        File apps = new File(root, "apps");
+        apps.mkdirs();
+        root.deleteOnExit();
+        apps.deleteOnExit();
+        paths = new String[FILES];
+        for (int i = 0; i < FILES; i++) {
+            paths[i] = "/apps/app"+ i +".js";
+            File file = new File(root, paths[i]);
+            file.deleteOnExit();
+            FileWriter out = new FileWriter(file);
+            out.write("({ app: "+ i +" })");
+            out.close();
+        }
+        Env.SERVLET_CONTEXT = (ServletContext) Proxy.newProxyInstance(
+            ServletContext.class.getClassLoader(),
+            new Class[] { ServletContext.class },
+            new InvocationHandler() {
+                public Object invoke (Object proxy, Method m, Object[] args) {
+                    return "getRealPath".equals(m.getName())
+                        ? root.getAbsolutePath() : null;
+                }
+            });
+    }
+
+    /* one request resolving every file, then cleaning up */
+    @Benchmark
+    public long perRequest () throws FileSystemException {
+        long size = 0;
+        for (String path : paths) {
+            FileObject file = TnicFileSystem.Manager.resolveFile(path);
+            size += file.getContent().getSize();
+        }
+        GaeVFS.clearFilesCache();
+        return size;
+    }
+
+    @Benchmark
+    public long fileCache () throws FileSystemException {
+        long size = 0;
+        for (String path : paths) {
+            size += FileCache.resolve(path).getContent().getSize();
+        }
+        FileCache.release();
+        return size;
+    }
+}
@@ -0,0 +1,53 @@
+package tnic.jsvm;
+
+import java.util.concurrent.TimeUnit;
+
+import org.mozilla.javascript.Context;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of entering and leaving a Context through the global ContextFactory,
+ * which makes a new Context every time, and through the TnicContextFactory,
+ * which re-enters the Context of the thread. Run with -prof gc for the bytes
+ * allocated per pair:
+ *
+ *   ant bench -Dbench.args='ContextBench -prof gc'
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ContextBench {
+
+    @Benchmark
+    public int globalFactory () {
+        Context cx = Context.enter();
+        try {
+            return cx.getOptimizationLevel();
+        }
+        finally {
+            Context.exit();
+        }
+    }
+
+    @Benchmark
+    public int tnicFactory () {
+        Context cx = Engine.enter();
+        try {
+            return cx.getOptimizationLevel();
+        }
+        finally {
+            Context.exit();
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package tnic.jsvm;
+
+import tnic.config.Env;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of one execution of a cached app with a fresh top-level scope per
+ * call (Env.SHARED_SCOPE off) and with a child of the sealed shared scope.
+ * Run with -prof gc for the bytes allocated per call:
+ *
+ *   ant bench -Dbench.args='SharedScopeBench -prof gc'
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SharedScopeBench {
+    private static final String SRC =
+        "(function () {"
+      + "  var list = [];"
+      + "  for (var i = 0; i < 10; i++) list.push($argv.a + i);"
+      + "  return { sum: list.join(','), md5: String(MD5.sum('tnic')) };"
+      + "})()";
+
+    @Param({ "false", "true" })
+    public boolean shared;
+
+    private CompiledScript script;
+
+    @Setup
+    public void setup () {
+        Env.SHARED_SCOPE = shared;
+        script = Engine.compile(SRC);
+    }
+
+    @Benchmark
+    public String eval () {
+        return Engine.eval(script, "({ a: 1 })");
+    }
+}
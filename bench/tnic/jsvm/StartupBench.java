@@ -0,0 +1,75 @@
+package tnic.jsvm;
+
+import tnic.cache.Codecs;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Time to the first result of an app on a fresh JVM, either compiling its
+ * source as an instance without persisted classes does, or decoding and
+ * defining the Bytecode another instance stored in memcache. Every fork runs
+ * one shot. To leave both modes in the same JVM state the setup of each
+ * compiles the app once, which also yields the Bytecode, so the shot measures
+ * an app compiled before any JIT warm-up rather than the first one of the
+ * JVM:
+ *
+ *   ant bench -Dbench.args='StartupBench'
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 0)
+@Measurement(iterations = 1)
+@Fork(10)
+public class StartupBench {
+    /* functions in the generated app */
+    private static final int FUNCTIONS = 200;
+
+    @Param({ "compile", "define" })
+    public String mode;
+
+    private String src;
+    private byte[] encoded;
+
+    @Setup
+    public void setup () throws IOException {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < FUNCTIONS; i++) {
+            sb.append("function f").append(i).append(" (a) {\n")
+              .append("  var list = [];\n")
+              .append("  for (var j = 0; j < a; j++) list.push({ n: j * ")
+              .append(i).append(", s: 'f").append(i).append("' + j });\n")
+              .append("  return list.length;\n")
+              .append("}\n");
+        }
+        sb.append("({ n: f0($argv.a) + f").append(FUNCTIONS - 1).append("($argv.a) })");
+        src = sb.toString();
+        encoded = Codecs.encode(Engine.compile(src).getSerializableScript());
+    }
+
+    @Benchmark
+    public String firstResult () throws IOException {
+        CompiledScript script;
+        if ("compile".equals(mode)) {
+            script = Engine.compile(src);
+        }
+        else {
+            Bytecode code = (Bytecode) Codecs.decode(encoded);
+            script = new CompiledScript(code.define(), code);
+        }
+        return Engine.eval(script, "({ a: 3 })");
+    }
+}
@@ -0,0 +1,89 @@
+package tnic.util;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of MD5 sums of byte arrays, and of the first SCOUR_MD5_BYTE_LIMIT
+ * bytes of a 1MB file, with the old shared digest (LegacyMD5) and the
+ * digest per thread. Run with -prof gc for the bytes allocated per sum:
+ *
+ *   ant bench -Dbench.args='MD5Bench -prof gc'
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MD5Bench {
+
+    @State(Scope.Thread)
+    public static class Bytes {
+        @Param({ "64", "1024", "32768" })
+        public int size;
+
+        byte[] bytes;
+
+        @Setup
+        public void setup () {
+            bytes = new byte[size];
+            new Random(42).nextBytes(bytes);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Files {
+        File file;
+
+        @Setup
+        public void setup () throws IOException {
+            byte[] contents = new byte[1024 * 1024];
+            new Random(42).nextBytes(contents);
+            file = File.createTempFile("md5", "bench");
+            FileOutputStream out = new FileOutputStream(file);
+            out.write(contents);
+            out.close();
+        }
+
+        @TearDown
+        public void tearDown () {
+            file.delete();
+        }
+    }
+
+    @Benchmark
+    public String legacySum (Bytes state) {
+        return LegacyMD5.sum(state.bytes);
+    }
+
+    @Benchmark
+    public String sum (Bytes state) {
+        return MD5.sum(state.bytes);
+    }
+
+    @Benchmark
+    public String legacyFile (Files state) throws IOException {
+        return LegacyMD5.getFileMD5(state.file);
+    }
+
+    @Benchmark
+    public String file (Files state) throws IOException {
+        return MD5.getFileMD5(state.file);
+    }
+}
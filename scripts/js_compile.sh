@@ -4,7 +4,7 @@
 
 CLASSPATH="lib/js.jar:$(echo war/WEB-INF/lib/*.jar . | sed 's/ /:/g'):war/WEB-INF/classes:appengine-java-sdk/lib/shared/servlet-api.jar"
 COMPILER="org.mozilla.javascript.tools.jsc.Main"
-OPTIONS="-opt 9 -nosource -extends java.lang.Object"
+OPTIONS="-opt 9 -nosource"
 OUTPUTDIR=war/WEB-INF/classes
 
 mkdir -p $OUTPUTDIR
@@ -2,13 +2,14 @@ package tnic.cache;
 
 import tnic.config.Env;
 
+import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
 
 import java.io.IOException;
 import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.io.Serializable;
 
 import javax.cache.Cache;
@@ -32,7 +33,8 @@ public class AppEngineMemcache {
     }
 
     /**
-     * Store an object in memcache.
+     * Store an object in memcache. The object is encoded by Codecs. Any copy
+     * held by the NearCache is dropped.
      *
      * @param String Key used for mapping to the object
      * @param Serializable The object to insert into memcache
@@ -41,74 +43,125 @@ public class AppEngineMemcache {
     public static Object put (String key, Serializable value) {
         Object valueObj = (Object)value;
         try {
-            ByteArrayOutputStream bos = new ByteArrayOutputStream() ;
-            ObjectOutputStream out = new ObjectOutputStream(bos) ;
-            
-            out.writeObject(valueObj);
-            out.close();
-            
-            byte[] objectBytes = bos.toByteArray();      
-            cache.put (key, objectBytes); 
+            cache.put (key, Codecs.encode (valueObj));
         }
         catch (IOException e) {
             Env.log.severe (e.toString ());
             return valueObj;
         }
+        finally {
+            NearCache.invalidate (key);
+        }
         return valueObj;
     }
     
     /**
-     * Retreives an object from memcache by using a key.
+     * Retreives an object from memcache by using a key. Recently read
+     * objects are served from the NearCache without a memcache call.
      *
      * @param String Key that maps to an object
-     * @return Object The unserialized object from memcache or NULL if the key
+     * @return Object The decoded object from memcache or NULL if the key
      *  doesn't map to an object
      */
     public static Object get (String key) {
-        if (!cache.containsKey(key)) return null;
-        try {
-            ByteArrayInputStream bis = getStream(key);
-            ObjectInputStream oin = new ObjectInputStream (bis);
-        
-            Object object = oin.readObject ();
-            oin.close ();
-            return object;
+        Object object = NearCache.get (key);
+        if (object != null) return object;
+
+        long stamp = NearCache.stamp (key);
+        byte[] objectBytes = (byte[]) cache.get (key);
+        if (objectBytes == null) return null;
+        object = decode (objectBytes);
+        if (object != null) NearCache.put (key, object, objectBytes.length, stamp);
+        return object;
+    }
+
+    /**
+     * Retreives many objects from memcache in one call. Objects held by the
+     * NearCache are not requested again.
+     *
+     * @param Collection Keys that map to objects
+     * @return Map of the keys found to their decoded objects
+     */
+    public static Map<String, Object> getAll (Collection<String> keys) {
+        Map<String, Object> objects = new HashMap<String, Object>();
+        Map<String, Long> missing = new HashMap<String, Long>();
+        for (String key : keys) {
+            Object object = NearCache.get (key);
+            if (object != null) objects.put (key, object);
+            else missing.put (key, NearCache.stamp (key));
         }
-        catch (IOException e) {
-            Env.log.severe (e.toString ());
-            return null;
+        if (missing.isEmpty()) return objects;
+
+        Map found = cache.getAll (missing.keySet());
+        Iterator entries = found.entrySet().iterator();
+        while (entries.hasNext()) {
+            Map.Entry entry = (Map.Entry) entries.next();
+            String key = (String) entry.getKey();
+            byte[] objectBytes = (byte[]) entry.getValue();
+            Object object = decode (objectBytes);
+            if (object == null) continue;
+            NearCache.put (key, object, objectBytes.length, missing.get (key));
+            objects.put (key, object);
         }
-        catch (ClassNotFoundException e) {
-            Env.log.severe (e.toString ());
-            return null;
+        return objects;
+    }
+
+    /**
+     * Store many objects in memcache in one call.
+     *
+     * @param Map Keys mapped to the objects to insert into memcache
+     */
+    public static void putAll (Map<String, ? extends Serializable> values) {
+        Map<String, byte[]> encoded = new HashMap<String, byte[]>();
+        for (Map.Entry<String, ? extends Serializable> entry : values.entrySet()) {
+            try {
+                encoded.put (entry.getKey(), Codecs.encode (entry.getValue()));
+            }
+            catch (IOException e) {
+                Env.log.severe (e.toString ());
+            }
+        }
+        try {
+            cache.putAll (encoded);
+        }
+        finally {
+            for (String key : values.keySet()) NearCache.invalidate (key);
         }
     }
 
+    /**
+     * Check whether memcache holds an object, without fetching it.
+     *
+     * @param String Key that maps to an object
+     * @return true if the key maps to an object
+     */
+    public static boolean contains (String key) {
+        return NearCache.get (key) != null || cache.containsKey (key);
+    }
+
+    /**
+     * Get the encoded bytes stored under a key, see Codecs.
+     */
     public static ByteArrayInputStream getStream (String key) {
         return new ByteArrayInputStream((byte[]) cache.get (key));
     }
     /**
      * Deletes an object from memcache, and returns the object
      */
-    public Object remove (String key) {
-        if (!cache.containsKey(key)) return null;
-        byte[] objectBytes = (byte[]) cache.remove (key);
+    public static Object remove (String key) {
+        NearCache.invalidate (key);
+        return decode ((byte[]) cache.remove (key));
+    }
+
+    private static Object decode (byte[] objectBytes) {
+        if (objectBytes == null) return null;
         try {
-            ByteArrayInputStream bis = new ByteArrayInputStream (objectBytes); 
-            ObjectInputStream oin = new ObjectInputStream (bis);
-        
-            Object object = oin.readObject ();
-            oin.close ();
-            return object;
+            return Codecs.decode (objectBytes);
         }
         catch (IOException e) {
             Env.log.severe (e.toString ());
             return null;
         }
-        catch (ClassNotFoundException e) {
-            Env.log.severe (e.toString ());
-            return null;
-        }
     }
 
 }
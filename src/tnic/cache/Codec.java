@@ -0,0 +1,39 @@
+package tnic.cache;
+
+import java.io.IOException;
+
+/**
+ * Encodes values stored in memcache to bytes and back. Each codec owns a tag
+ * that Codecs writes in front of the encoded bytes, so a value is always
+ * decoded by the codec that encoded it. Register codecs with Codecs.register.
+ */
+public interface Codec {
+    /**
+     * Get the tag identifying this codec in encoded values.
+     * @return tag between 1 and 63
+     */
+    public int getTag ();
+
+    /**
+     * Check whether this codec can encode a value.
+     * @param value The value to store
+     * @return true if encode() accepts the value
+     */
+    public boolean accepts (Object value);
+
+    /**
+     * Encode a value.
+     * @param value The value to store
+     * @return the encoded bytes
+     */
+    public byte[] encode (Object value) throws IOException;
+
+    /**
+     * Decode a value.
+     * @param data      Buffer holding the encoded bytes
+     * @param offset    Start of the encoded bytes in data
+     * @param length    Number of encoded bytes
+     * @return the decoded value
+     */
+    public Object decode (byte[] data, int offset, int length) throws IOException;
+}
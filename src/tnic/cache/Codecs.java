@@ -0,0 +1,255 @@
+package tnic.cache;
+
+import tnic.config.Env;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.nio.charset.Charset;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Encodes memcache values through the registered Codecs. An encoded value is
+ * one header byte, holding the codec tag and a compression flag, followed by
+ * the codec output. Strings and byte arrays are stored as plain UTF-8 and raw
+ * bytes; anything else falls back to Java serialization. Encoded values
+ * larger than Env.CACHE_COMPRESSION_THRESHOLD bytes are deflated, prefixed by
+ * their inflated length, when that makes them smaller. A stored length out of
+ * bounds or a body that does not inflate to it is corrupt, and decodes to an
+ * IOException, which AppEngineMemcache treats as a miss.
+ *
+ * Values stored with plain Java serialization by earlier versions start with
+ * the serialization magic number, whose high bit no header byte has, and are
+ * still decoded.
+ */
+public class Codecs {
+    public static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final int TAG_MASK   = 0x3f;
+    private static final int COMPRESSED = 0x40;
+    private static final int LEGACY     = 0x80;
+
+    public static final Codec STRING = new Codec() {
+        public int getTag () {
+            return 1;
+        }
+
+        public boolean accepts (Object value) {
+            return value instanceof String;
+        }
+
+        public byte[] encode (Object value) {
+            return ((String) value).getBytes(UTF8);
+        }
+
+        public Object decode (byte[] data, int offset, int length) {
+            return new String(data, offset, length, UTF8);
+        }
+    };
+
+    public static final Codec BYTES = new Codec() {
+        public int getTag () {
+            return 2;
+        }
+
+        public boolean accepts (Object value) {
+            return value instanceof byte[];
+        }
+
+        public byte[] encode (Object value) {
+            return (byte[]) value;
+        }
+
+        public Object decode (byte[] data, int offset, int length) {
+            byte[] bytes = new byte[length];
+            System.arraycopy(data, offset, bytes, 0, length);
+            return bytes;
+        }
+    };
+
+    public static final Codec SERIALIZABLE = new Codec() {
+        public int getTag () {
+            return 3;
+        }
+
+        public boolean accepts (Object value) {
+            return value instanceof Serializable;
+        }
+
+        public byte[] encode (Object value) throws IOException {
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            ObjectOutputStream out = new ObjectOutputStream(bos);
+            out.writeObject(value);
+            out.close();
+            return bos.toByteArray();
+        }
+
+        public Object decode (byte[] data, int offset, int length)
+                throws IOException {
+            return deserialize(new ByteArrayInputStream(data, offset, length));
+        }
+    };
+
+    /* codecs in the order they are tried, the fallback last */
+    private static volatile Codec[] codecs = { STRING, BYTES, SERIALIZABLE };
+
+    /**
+     * Register a codec, tried before the ones registered earlier. Its tag
+     * must not be taken by a builtin or already registered codec, since the
+     * tag is what decodes values stored with it.
+     * @param codec The codec to register
+     */
+    public static synchronized void register (Codec codec) {
+        int tag = codec.getTag();
+        if (tag < 1 || tag > TAG_MASK) {
+            throw new IllegalArgumentException("Invalid codec tag: "+ tag);
+        }
+        for (Codec registered : codecs) {
+            if (registered.getTag() == tag) {
+                throw new IllegalArgumentException("Codec tag in use: "+ tag);
+            }
+        }
+        Codec[] next = new Codec[codecs.length + 1];
+        next[0] = codec;
+        System.arraycopy(codecs, 0, next, 1, codecs.length);
+        codecs = next;
+    }
+
+    /**
+     * Encode a value for memcache.
+     * @param value The value to store
+     * @return the encoded value
+     */
+    public static byte[] encode (Object value) throws IOException {
+        Codec codec = find(value);
+        byte[] body = codec.encode(value);
+        int header = codec.getTag();
+
+        if (Env.CACHE_COMPRESSION_THRESHOLD > 0
+                && body.length > Env.CACHE_COMPRESSION_THRESHOLD
+                && body.length <= Env.CACHE_INFLATED_LIMIT) {
+            byte[] deflated = deflate(body, header);
+            if (deflated != null) return deflated;
+        }
+
+        byte[] data = new byte[body.length + 1];
+        data[0] = (byte) header;
+        System.arraycopy(body, 0, data, 1, body.length);
+        return data;
+    }
+
+    /**
+     * Decode a value read from memcache.
+     * @param data  The encoded value
+     * @return the stored value
+     */
+    public static Object decode (byte[] data) throws IOException {
+        if (data.length == 0) throw new IOException("Empty cache value");
+        int header = data[0] & 0xff;
+        if ((header & LEGACY) != 0) {
+            return deserialize(new ByteArrayInputStream(data));
+        }
+
+        Codec codec = find(header & TAG_MASK);
+        if ((header & COMPRESSED) == 0) {
+            return codec.decode(data, 1, data.length - 1);
+        }
+        byte[] body = inflate(data);
+        return codec.decode(body, 0, body.length);
+    }
+
+    private static Codec find (Object value) throws IOException {
+        for (Codec codec : codecs) {
+            if (codec.accepts(value)) return codec;
+        }
+        throw new IOException("No codec for "+ value.getClass().getName());
+    }
+
+    private static Codec find (int tag) throws IOException {
+        for (Codec codec : codecs) {
+            if (codec.getTag() == tag) return codec;
+        }
+        throw new IOException("No codec with tag "+ tag);
+    }
+
+    /**
+     * Deflate an encoded body behind a compressed header and the inflated
+     * length, or return null if that does not save anything.
+     */
+    private static byte[] deflate (byte[] body, int header) {
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(body);
+            deflater.finish();
+            byte[] data = new byte[body.length];
+            int n = 5;
+            while (!deflater.finished() && n < data.length) {
+                n += deflater.deflate(data, n, data.length - n);
+            }
+            if (!deflater.finished()) return null;
+
+            data[0] = (byte) (header | COMPRESSED);
+            data[1] = (byte) (body.length >>> 24);
+            data[2] = (byte) (body.length >>> 16);
+            data[3] = (byte) (body.length >>> 8);
+            data[4] = (byte) body.length;
+            byte[] result = new byte[n];
+            System.arraycopy(data, 0, result, 0, n);
+            return result;
+        }
+        finally {
+            deflater.end();
+        }
+    }
+
+    private static byte[] inflate (byte[] data) throws IOException {
+        if (data.length < 5) throw new IOException("Truncated cache value");
+        int length = ((data[1] & 0xff) << 24) | ((data[2] & 0xff) << 16)
+            | ((data[3] & 0xff) << 8) | (data[4] & 0xff);
+        /* deflate never shrinks data by more than about 1032 to 1 */
+        if (length < 0 || length > Env.CACHE_INFLATED_LIMIT
+                || length > (data.length - 5) * 1032L) {
+            throw new IOException("Corrupt cache value length: "+ length);
+        }
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(data, 5, data.length - 5);
+            byte[] body = new byte[length];
+            int n = 0;
+            while (n < length && !inflater.finished()) {
+                int read = inflater.inflate(body, n, length - n);
+                if (read == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new IOException("Truncated cache value");
+                }
+                n += read;
+            }
+            if (n < length) throw new IOException("Truncated cache value");
+            return body;
+        }
+        catch (DataFormatException e) {
+            throw new IOException(e.toString());
+        }
+        finally {
+            inflater.end();
+        }
+    }
+
+    private static Object deserialize (ByteArrayInputStream bis)
+            throws IOException {
+        ObjectInputStream oin = new ObjectInputStream(bis);
+        try {
+            return oin.readObject();
+        }
+        catch (ClassNotFoundException e) {
+            throw new IOException(e.toString());
+        }
+        finally {
+            oin.close();
+        }
+    }
+}
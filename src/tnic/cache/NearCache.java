@@ -0,0 +1,204 @@
+package tnic.cache;
+
+import tnic.config.Env;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-process tier in front of memcache. Holds decoded values read through
+ * AppEngineMemcache for at most Env.NEAR_CACHE_TTL milliseconds, so a hot key
+ * costs neither a memcache round trip nor decoding. Entries are weighed by
+ * their encoded size; once the total exceeds Env.NEAR_CACHE_BYTES the least
+ * recently used entries are evicted. Writes and removes through
+ * AppEngineMemcache invalidate the entry, writes by other instances are seen
+ * once it expires.
+ *
+ * Keys are spread over stripes, each with its own lock, share of the bytes
+ * and generation. Invalidating a key moves its stripe to a new generation; a
+ * value read from memcache is only held if its stripe is still in the
+ * generation stamped before the read, so a read that loses a race with a
+ * write cannot put the old value back.
+ *
+ * Values are shared between callers and must not be modified.
+ */
+public class NearCache {
+    private static final int STRIPES = 16;
+
+    private static final Stripe[] stripes = new Stripe[STRIPES];
+    static {
+        for (int i = 0; i < stripes.length; i++) stripes[i] = new Stripe();
+    }
+
+    private static final AtomicLong hits      = new AtomicLong();
+    private static final AtomicLong misses    = new AtomicLong();
+    private static final AtomicLong evictions = new AtomicLong();
+
+    private static class Entry {
+        final Object value;
+        final int weight;
+        final long expires;
+
+        Entry (Object value, int weight, long expires) {
+            this.value   = value;
+            this.weight  = weight;
+            this.expires = expires;
+        }
+    }
+
+    private static class Stripe {
+        final Map<String, Entry> entries =
+            new LinkedHashMap<String, Entry>(16, 0.75f, true);
+        long bytes      = 0;
+        long generation = 0;
+
+        void remove (String key) {
+            Entry entry = entries.remove(key);
+            if (entry != null) bytes -= entry.weight;
+        }
+    }
+
+    /**
+     * Look up a value.
+     * @param key   The memcache key
+     * @return the value, or null if it is not held or has expired
+     */
+    public static Object get (String key) {
+        Stripe stripe = stripe(key);
+        Entry entry;
+        synchronized (stripe) {
+            entry = stripe.entries.get(key);
+            if (entry != null && entry.expires < System.currentTimeMillis()) {
+                stripe.remove(key);
+                entry = null;
+            }
+        }
+        if (entry == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        return entry.value;
+    }
+
+    /**
+     * Get the generation of a key, to be passed to put with the value read
+     * from memcache after this call.
+     * @param key   The memcache key
+     * @return generation stamp
+     */
+    public static long stamp (String key) {
+        Stripe stripe = stripe(key);
+        synchronized (stripe) {
+            return stripe.generation;
+        }
+    }
+
+    /**
+     * Hold a value read from memcache, unless the key has been invalidated
+     * since it was stamped.
+     * @param key       The memcache key
+     * @param value     The decoded value
+     * @param weight    The encoded size of the value in bytes
+     * @param stamp     The generation of the key before the value was read
+     */
+    public static void put (String key, Object value, int weight, long stamp) {
+        long limit = Env.NEAR_CACHE_BYTES / STRIPES;
+        if (limit <= 0 || weight > limit) return;
+        Stripe stripe = stripe(key);
+        synchronized (stripe) {
+            if (stripe.generation != stamp) return;
+            stripe.remove(key);
+            stripe.entries.put(key, new Entry(
+                value, weight, System.currentTimeMillis() + Env.NEAR_CACHE_TTL));
+            stripe.bytes += weight;
+
+            Iterator<Entry> eldest = stripe.entries.values().iterator();
+            while (stripe.bytes > limit && eldest.hasNext()) {
+                stripe.bytes -= eldest.next().weight;
+                eldest.remove();
+                evictions.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Drop the value held for a key, and any value for it still being read.
+     * @param key   The memcache key
+     */
+    public static void invalidate (String key) {
+        Stripe stripe = stripe(key);
+        synchronized (stripe) {
+            stripe.remove(key);
+            stripe.generation++;
+        }
+    }
+
+    /**
+     * Drop every value.
+     */
+    public static void clear () {
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                stripe.entries.clear();
+                stripe.bytes = 0;
+                stripe.generation++;
+            }
+        }
+    }
+
+    public static long hits () {
+        return hits.get();
+    }
+
+    public static long misses () {
+        return misses.get();
+    }
+
+    public static long evictions () {
+        return evictions.get();
+    }
+
+    /**
+     * Get the encoded size of all values held.
+     * @return size in bytes
+     */
+    public static long bytes () {
+        long bytes = 0;
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                bytes += stripe.bytes;
+            }
+        }
+        return bytes;
+    }
+
+    public static int size () {
+        int size = 0;
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                size += stripe.entries.size();
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Construct the cache counters as JSON
+     * @return JSON string of the counters
+     */
+    public static String stats () {
+        long hits = hits(), misses = misses();
+        long lookups = hits + misses;
+        double ratio = (lookups == 0) ? 0 : (double) hits / lookups;
+        return "({ size: "+ size() +", bytes: "+ bytes()
+            +", hits: "+ hits +", misses: "+ misses
+            +", hitRatio: "+ ratio +", evictions: "+ evictions() +" })";
+    }
+
+    private static Stripe stripe (String key) {
+        return stripes[(key.hashCode() & 0x7fffffff) % STRIPES];
+    }
+}
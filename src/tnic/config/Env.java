@@ -10,4 +10,90 @@ public class Env {
 
     public static boolean TESTING         = false;
     public static String JSVM_THREAD_POOL = null;
+
+    /* maximum number of compiled apps held by tnic.jsvm.ScriptCache */
+    public static int SCRIPT_CACHE_SIZE   = 256;
+
+    /* run scripts in a child of one sealed, shared top-level scope */
+    public static boolean SHARED_SCOPE    = false;
+
+    /* execution budget of a single script run, 0 for no limit */
+    public static long EXECUTION_INSTRUCTION_LIMIT = 0;
+    public static long EXECUTION_TIME_LIMIT        = 0; /* milliseconds */
+
+    /* Rhino settings of tnic.jsvm.TnicContextFactory contexts; an
+     * optimization level of -1 selects the interpreter, 0-9 the compiler */
+    public static int OPTIMIZATION_LEVEL      = 0;
+    public static int LANGUAGE_VERSION        = 0; /* Context.VERSION_DEFAULT */
+    public static boolean JAVA_PRIMITIVE_WRAP = true;
+
+    /* tnic.jsvm.Modules: directory of the modules required by bare name */
+    public static String MODULE_PATH = "/modules/";
+
+    /* tnic.jsvm.Engine: evaluate app arguments that are neither JSON nor
+     * plain literals as javascript, after the app's declarations, rather
+     * than rejecting them */
+    public static boolean ARGV_EVAL = false;
+
+    /* tnic.jsvm.Bytecode: share compiled app classes between instances
+     * through memcache */
+    public static boolean BYTECODE_CACHE = true;
+
+    /* tnic.jsvm.Batch: invocations per batch */
+    public static int BATCH_MAX_SIZE = 100;
+
+    /* tnic.jsvm.Jobs: longest long-poll in ms, ms between memcache checks
+     * while long-polling */
+    public static long JOB_MAX_WAIT      = 25000;
+    public static long JOB_POLL_INTERVAL = 250;
+
+    /* tnic.jsvm.ResultCache: cached results, default TTL in seconds of apps
+     * declared cacheable, whether memcache is a second tier */
+    public static int RESULT_CACHE_SIZE         = 1024;
+    public static long RESULT_CACHE_TTL         = 60;
+    public static boolean RESULT_CACHE_MEMCACHE = false;
+
+    /* tnic.cache.Codecs: deflate encoded values larger than this many bytes,
+     * 0 to never compress, and never inflate one to more than this many */
+    public static int CACHE_COMPRESSION_THRESHOLD = 16 * 1024;
+    public static int CACHE_INFLATED_LIMIT        = 16 * 1024 * 1024;
+
+    /* tnic.cache.NearCache: encoded bytes held in process, 0 to disable, and
+     * how long in milliseconds a value is served without asking memcache */
+    public static long NEAR_CACHE_BYTES = 8 * 1024 * 1024;
+    public static long NEAR_CACHE_TTL   = 5000;
+
+    /* tnic.fs.TnicFileSystem: serve the last contents seen of a file missing
+     * from memcache while another request reloads it, for at most this many
+     * files */
+    public static boolean FILE_STALE_WHILE_REVALIDATE = false;
+    public static int FILE_STALE_SIZE                 = 256;
+
+    /* tnic.fs.FileCache: resolved files kept per thread, and how long in
+     * milliseconds one is used before it is refreshed */
+    public static int FILE_OBJECT_CACHE_SIZE = 512;
+    public static long FILE_OBJECT_TTL       = 30000;
+
+    /* tnic.fs.TnicFileSystem: files larger than this many bytes are streamed
+     * instead of being read into memcache */
+    public static long FILE_STREAM_THRESHOLD = 64 * 1024;
+
+    /* tnic.fs.Leases: how long in milliseconds a patch may hold a path */
+    public static long FILE_LEASE_TIME = 30000;
+
+    /* tnic.editor.Servlet: gzip responses larger than this many bytes */
+    public static int GZIP_THRESHOLD = 1024;
+
+    /* tnic.util.HTTP: milliseconds a request may take */
+    public static int HTTP_DEADLINE = 10000;
+
+    /* tnic.util.HTTPCache: cached responses, 0 to disable, and the largest
+     * body cached in bytes */
+    public static int HTTP_CACHE_SIZE       = 256;
+    public static int HTTP_CACHE_MAX_BYTES  = 256 * 1024;
+
+    /* tnic.db.AppEngineDatastore: objects per datastore call, at most 500,
+     * and results per page of a query read by cursor */
+    public static int DATASTORE_BATCH_SIZE = 500;
+    public static int DATASTORE_PAGE_SIZE  = 100;
 }
@@ -1,10 +1,11 @@
 package tnic.db;
 
+import tnic.config.Env;
+
 import com.google.appengine.api.datastore.DatastoreServiceFactory;
 import com.google.appengine.api.datastore.DatastoreService;
-import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.Entity;
 import com.google.appengine.api.datastore.Key;
-import com.google.appengine.api.datastore.GeoPt;
 
 import com.google.appengine.api.datastore.Cursor;
 import org.datanucleus.store.appengine.query.JDOCursorHelper;
@@ -13,20 +14,30 @@ import javax.jdo.Transaction;
 import javax.jdo.JDOHelper;
 import javax.jdo.PersistenceManagerFactory;
 import javax.jdo.PersistenceManager;
-import javax.jdo.annotations.Persistent;
-import javax.jdo.Extent;
 import javax.jdo.Query;
 
 import java.util.Map;
 import java.util.HashMap;
-import java.util.Calendar;
 import java.util.Collection;
 import java.util.logging.Logger;
 import java.util.List;
 import java.util.ArrayList;
-import java.util.Date;
 import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicLong;
 
+/**
+ * Data access for tnic apps. Every thread uses one PersistenceManager from
+ * its first datastore access until release() is called at the end of the
+ * request, so an app opens at most one however many times it constructs
+ * this class. Puts, gets and deletes of many objects are sent to the
+ * datastore in batches of Env.DATASTORE_BATCH_SIZE instead of one call per
+ * object, and queries are read a page at a time by cursor:
+ *
+ *   var db = new Packages.tnic.db.AppEngineDatastore();
+ *   var page = db.page(query, req.cursor, 20);
+ *   ({ items: page.getItems(), next: page.getCursor() })
+ */
 public class AppEngineDatastore {
     private static class PMF {
         private static final PersistenceManagerFactory pmfInstance =
@@ -36,28 +47,308 @@ public class AppEngineDatastore {
         }
     }
 
+    private static class DS {
+        private static final DatastoreService instance =
+            DatastoreServiceFactory.getDatastoreService();
+    }
+
     private static final Logger log = Logger.getLogger(AppEngineDatastore.class.getName());
-    private PersistenceManager pm;
+
+    private static final ThreadLocal<PersistenceManager> current =
+        new ThreadLocal<PersistenceManager>();
+
+    private static final AtomicLong opened   = new AtomicLong();
+    private static final AtomicLong calls    = new AtomicLong();
+    private static final AtomicLong entities = new AtomicLong();
+
+    /**
+     * A page of query results and the cursor of the next page.
+     */
+    public static class Page<T> {
+        private final List<T> items;
+        private final String cursor;
+
+        Page (List<T> items, String cursor) {
+            this.items  = items;
+            this.cursor = cursor;
+        }
+
+        public List<T> getItems () {
+            return this.items;
+        }
+
+        /**
+         * Get the web-safe cursor of the next page.
+         * @return cursor string, or null if this is the last page
+         */
+        public String getCursor () {
+            return this.cursor;
+        }
+
+        public boolean hasMore () {
+            return this.cursor != null;
+        }
+    }
 
     /**
      * Sole constructor.
      */
-    public AppEngineDatastore () { 
-        if (pm != null) return;
-        pm = PMF.get().getPersistenceManager();
+    public AppEngineDatastore () {
+    }
+
+    /**
+     * Get the PersistenceManager of the current request, opening it on first
+     * use.
+     * @return PersistenceManager instance
+     */
+    public static PersistenceManager pm () {
+        PersistenceManager pm = current.get();
+        if (pm == null || pm.isClosed()) {
+            pm = PMF.get().getPersistenceManager();
+            current.set(pm);
+            opened.incrementAndGet();
+        }
+        return pm;
+    }
+
+    /**
+     * End the use of the datastore by the current request. Rolls back a
+     * transaction left open and closes the PersistenceManager.
+     */
+    public static void release () {
+        PersistenceManager pm = current.get();
+        if (pm == null) return;
+        current.remove();
+        try {
+            Transaction tx = pm.currentTransaction();
+            if (tx.isActive()) {
+                log.warning("Rolling back a transaction left open");
+                tx.rollback();
+            }
+        }
+        finally {
+            if (!pm.isClosed()) pm.close();
+        }
+    }
+
+    public PersistenceManager getPersistenceManager () {
+        return pm();
+    }
+
+    /**
+     * Persist objects, in batches.
+     * @param objects   The objects to persist
+     * @return the persistent objects
+     */
+    public <T> List<T> makePersistentAll (Collection<T> objects) {
+        List<T> persisted = new ArrayList<T>(objects.size());
+        for (List<T> batch : batches(objects)) {
+            persisted.addAll(pm().makePersistentAll(batch));
+            count(batch.size());
+        }
+        return persisted;
+    }
+
+    /**
+     * Get objects by their keys, in batches.
+     * @param cls   The class of the objects
+     * @param keys  The primary keys
+     * @return the objects in the order of their keys
+     */
+    @SuppressWarnings("unchecked")
+    public <T> List<T> getObjectsById (Class<T> cls, Collection<?> keys) {
+        PersistenceManager pm = pm();
+        List<T> objects = new ArrayList<T>(keys.size());
+        for (List<?> batch : batches(keys)) {
+            List<Object> ids = new ArrayList<Object>(batch.size());
+            for (Object key : batch) ids.add(pm.newObjectIdInstance(cls, key));
+            objects.addAll((Collection<T>) pm.getObjectsById(ids));
+            count(batch.size());
+        }
+        return objects;
+    }
+
+    /**
+     * Delete persistent objects, in batches.
+     * @param objects   The objects to delete
+     */
+    public void deletePersistentAll (Collection<?> objects) {
+        for (List<?> batch : batches(objects)) {
+            pm().deletePersistentAll(batch);
+            count(batch.size());
+        }
+    }
+
+    /**
+     * Put entities with one datastore call per batch.
+     * @param batch The entities to put
+     * @return the keys of the entities, in order
+     */
+    public List<Key> put (Collection<Entity> batch) {
+        List<Key> keys = new ArrayList<Key>(batch.size());
+        for (List<Entity> chunk : batches(batch)) {
+            keys.addAll(DS.instance.put(chunk));
+            count(chunk.size());
+        }
+        return keys;
+    }
+
+    /**
+     * Get entities with one datastore call per batch.
+     * @param keys  The keys of the entities
+     * @return the entities found, by key
+     */
+    public Map<Key, Entity> get (Collection<Key> keys) {
+        Map<Key, Entity> found = new HashMap<Key, Entity>();
+        for (List<Key> chunk : batches(keys)) {
+            found.putAll(DS.instance.get(chunk));
+            count(chunk.size());
+        }
+        return found;
+    }
+
+    /**
+     * Delete entities with one datastore call per batch.
+     * @param keys  The keys of the entities
+     */
+    public void delete (Collection<Key> keys) {
+        for (List<Key> chunk : batches(keys)) {
+            DS.instance.delete(chunk);
+            count(chunk.size());
+        }
     }
-    /*
-    public boolean descriptorExists (String agency_id, String checksum) {
-        Query query = pm.newQuery(GtfsDatasetDescriptor.class);
-        query.setFilter("agency_id == agency_id_param && checksum == checksum_param");
-        query.declareParameters("String agency_id_param, String checksum_param");
+
+    /**
+     * Run a query for one page of results, replacing its range.
+     * @param query     The query, created by pm().newQuery
+     * @param cursor    The cursor of the page, null for the first
+     * @param limit     The largest number of results
+     * @param params    The query parameters
+     * @return the Page of results
+     */
+    @SuppressWarnings("unchecked")
+    public <T> Page<T> page (Query query, String cursor, int limit,
+            Object... params) {
+        if (limit <= 0) limit = Env.DATASTORE_PAGE_SIZE;
+        query.setRange(0, limit);
+        query.addExtension(JDOCursorHelper.CURSOR_EXTENSION,
+            (cursor == null) ? null : Cursor.fromWebSafeString(cursor));
         try {
-            List results = (List)query.execute(agency_id, checksum);
-            return (0 != results.size());
+            List<T> results = (List<T>) query.executeWithArray(params);
+            List<T> items = new ArrayList<T>(results);
+            count(items.size());
+            if (items.size() < limit) return new Page<T>(items, null);
+            Cursor next = JDOCursorHelper.getCursor(results);
+            return new Page<T>(items, (next == null) ? null : next.toWebSafeString());
         }
         finally {
             query.closeAll();
         }
     }
-    */
+
+    /**
+     * Iterate over all results of a query, reading them a page at a time, so
+     * at most one page is held in memory.
+     * @param query     The query, created by pm().newQuery
+     * @param pageSize  The results per page, 0 for Env.DATASTORE_PAGE_SIZE
+     * @param params    The query parameters
+     * @return Iterator over the results
+     */
+    public <T> Iterator<T> stream (final Query query, final int pageSize,
+            final Object... params) {
+        return new Iterator<T>() {
+            private Iterator<T> items;
+            private String cursor;
+            private boolean last;
+
+            public boolean hasNext () {
+                while ((items == null || !items.hasNext()) && !last) {
+                    Page<T> next = AppEngineDatastore.this.<T>page(
+                        query, cursor, pageSize, params);
+                    items  = next.getItems().iterator();
+                    cursor = next.getCursor();
+                    last   = !next.hasMore();
+                }
+                return items.hasNext();
+            }
+
+            public T next () {
+                if (!hasNext()) throw new NoSuchElementException();
+                return items.next();
+            }
+
+            public void remove () {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    /**
+     * Check whether a query has any result, reading at most one, e.g.
+     *
+     *   exists(Descriptor.class, "agency == a && checksum == c",
+     *       "String a, String c", agency, checksum)
+     *
+     * @param cls           The class queried
+     * @param filter        The JDOQL filter
+     * @param parameters    The parameter declarations
+     * @param values        The parameter values
+     * @return true if an object matches
+     */
+    public boolean exists (Class<?> cls, String filter, String parameters,
+            Object... values) {
+        Query query = pm().newQuery(cls);
+        query.setFilter(filter);
+        query.declareParameters(parameters);
+        query.setRange(0, 1);
+        try {
+            return !((Collection<?>) query.executeWithArray(values)).isEmpty();
+        }
+        finally {
+            query.closeAll();
+        }
+    }
+
+    public static long opened () {
+        return opened.get();
+    }
+
+    public static long calls () {
+        return calls.get();
+    }
+
+    public static long entities () {
+        return entities.get();
+    }
+
+    /**
+     * Construct the datastore counters as JSON
+     * @return JSON string of the counters
+     */
+    public static String stats () {
+        return "({ opened: "+ opened() +", calls: "+ calls()
+            +", entities: "+ entities() +" })";
+    }
+
+    private static void count (int n) {
+        calls.incrementAndGet();
+        entities.addAndGet(n);
+    }
+
+    /**
+     * Split objects into lists of at most Env.DATASTORE_BATCH_SIZE.
+     */
+    private static <T> List<List<T>> batches (Collection<T> objects) {
+        int size = Math.max(1, Env.DATASTORE_BATCH_SIZE);
+        List<List<T>> batches = new ArrayList<List<T>>();
+        List<T> batch = null;
+        for (T object : objects) {
+            if (batch == null || batch.size() == size) {
+                batch = new ArrayList<T>(Math.min(size, objects.size()));
+                batches.add(batch);
+            }
+            batch.add(object);
+        }
+        return batches;
+    }
 }
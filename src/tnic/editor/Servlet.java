@@ -4,45 +4,81 @@ import tnic.fs.TnicFileSystem;
 import tnic.config.Env;
 
 import java.io.*;
+import java.util.zip.GZIPOutputStream;
 
 import javax.servlet.*;
 import javax.servlet.http.*;
 
 import org.apache.commons.vfs.*;
-import com.newatlanta.commons.vfs.provider.gae.GaeVFS;
 
 public class Servlet extends HttpServlet {
 
     private static FileSystemManager fsManager;
 
+    private static final byte[] NEWLINE =
+        System.getProperty("line.separator").getBytes();
+
     public void init () throws ServletException {
         tnic.config.Env.SERVLET_CONTEXT = getServletContext();
 
     }
 
     /**
-     * Handles the loading of a file into the browser editor
+     * Handles the loading of a file into the browser editor. The response
+     * carries the ETag of the file, and is 304 Not Modified when the request
+     * already has it. Responses larger than Env.GZIP_THRESHOLD bytes are
+     * gzipped for clients that accept it, under an ETag of their own since
+     * their bytes differ.
      */
     public void doGet (HttpServletRequest req, HttpServletResponse res) 
             throws ServletException, IOException {
 
         res.setContentType("text/plain");
+        res.setCharacterEncoding("UTF-8");
+        res.setHeader("Vary", "Accept-Encoding");
 
         try {
             String fileName = req.getParameter("f");
-            res.getWriter().println(TnicFileSystem.getAsciiFile(fileName));
+            String sum      = TnicFileSystem.getETag(fileName);
+            String etag     = "\""+ sum +"\"";
+            String gzipTag  = "\""+ sum +"-gzip\"";
+            boolean gzip    = acceptsGzip(req);
+            String ifNoneMatch = req.getHeader("If-None-Match");
+            res.setHeader("ETag", etag);
+            if (matches(ifNoneMatch, etag)) {
+                res.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+                return;
+            }
+            if (gzip && matches(ifNoneMatch, gzipTag)) {
+                res.setHeader("ETag", gzipTag);
+                res.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+                return;
+            }
+
+            /* the file followed by a line separator, as println used to */
+            OutputStream out = gzip
+                ? new GzipAboveThreshold(res, gzipTag) : res.getOutputStream();
+            TnicFileSystem.copyFile(fileName, out);
+            out.write(NEWLINE);
+            out.close();
         }
         catch (NullPointerException ex) {
-            res.getWriter().print("File Not Found");
+            res.getOutputStream().print("File Not Found");
             Env.log.severe (ex.toString());
         }
         finally {
-            GaeVFS.clearFilesCache();
+            TnicFileSystem.cleanup();
         }
     }
 
     /**
-     * Handles the saving of a file
+     * Handles the saving of a file. The contents are either the form
+     * parameter 'c', or a text/plain request body that is streamed into the
+     * file; either is stored without leading and trailing whitespace. A save
+     * with a 'base' parameter is a patch instead: the characters 'start' to
+     * 'end' of the version with ETag 'base' are replaced by 'text'. A patch
+     * against an outdated version is rejected with 409 Conflict. Successful
+     * saves answer with the new ETag.
      */
     public void doPost (HttpServletRequest req, HttpServletResponse res)
             throws ServletException, IOException {
@@ -50,17 +86,157 @@ public class Servlet extends HttpServlet {
         res.setContentType("text/plain");
 
         try {
-            String fileName     = req.getParameter("f");
+            String fileName = req.getParameter("f");
+            String type     = req.getContentType();
+
+            if (type != null && type.startsWith("text/plain")) {
+                TnicFileSystem.storeFile(fileName, new Trimmed(
+                    new BufferedInputStream(req.getInputStream())));
+                res.setHeader("ETag", "\""+ TnicFileSystem.getETag(fileName) +"\"");
+                return;
+            }
+
+            String base = req.getParameter("base");
+            if (base != null) {
+                String text = req.getParameter("text");
+                String etag = TnicFileSystem.patchAsciiFile(fileName, base,
+                    Integer.parseInt(req.getParameter("start")),
+                    Integer.parseInt(req.getParameter("end")),
+                    (text == null) ? "" : text);
+                if (etag == null) {
+                    res.setStatus(HttpServletResponse.SC_CONFLICT);
+                    res.getWriter().println("Conflict");
+                    return;
+                }
+                res.setHeader("ETag", "\""+ etag +"\"");
+                return;
+            }
+
             String fileContents = req.getParameter("c");
 
             TnicFileSystem.storeAsciiFile(fileName, fileContents.trim());
+            res.setHeader("ETag", "\""+ TnicFileSystem.getETag(fileName) +"\"");
+        }
+        catch (IllegalArgumentException ex) {
+            /* missing or malformed parameters, or a patch out of range */
+            res.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+            res.getWriter().println("Fail");
+            Env.log.warning (ex.toString());
         }
         catch (Exception ex) {
+            res.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
             res.getWriter().println("Fail");
             Env.log.severe (ex.toString());
         }
         finally {
-            GaeVFS.clearFilesCache();
+            TnicFileSystem.cleanup();
+        }
+    }
+
+    private static boolean matches (String ifNoneMatch, String etag) {
+        if (ifNoneMatch == null) return false;
+        for (String tag : ifNoneMatch.split(",")) {
+            tag = tag.trim();
+            if (tag.startsWith("W/")) tag = tag.substring(2);
+            if (tag.equals(etag) || tag.equals("*")) return true;
+        }
+        return false;
+    }
+
+    private static boolean acceptsGzip (HttpServletRequest req) {
+        String accept = req.getHeader("Accept-Encoding");
+        return accept != null && accept.indexOf("gzip") != -1;
+    }
+
+    /**
+     * Reads a UTF-8 stream without its leading and trailing whitespace, as
+     * String.trim() does. Whitespace is only held back while it may be
+     * trailing, so the stream is never buffered whole. Bytes up to 0x20 are
+     * never part of a multi-byte UTF-8 character, so trimming bytes trims
+     * the same characters.
+     */
+    private static class Trimmed extends InputStream {
+        private final InputStream in;
+        private final ByteArrayOutputStream held = new ByteArrayOutputStream();
+        private byte[] pending = null;
+        private int next = 0;
+        private boolean started = false;
+
+        Trimmed (InputStream in) {
+            this.in = in;
+        }
+
+        public int read () throws IOException {
+            if (pending != null) {
+                int b = pending[next++] & 0xff;
+                if (next == pending.length) pending = null;
+                return b;
+            }
+            int b = in.read();
+            if (!started) {
+                while (b != -1 && b <= ' ') b = in.read();
+                started = true;
+                return b;
+            }
+            if (b == -1 || b > ' ') return b;
+
+            /* hold whitespace until it turns out not to be trailing */
+            held.reset();
+            while (b != -1 && b <= ' ') {
+                held.write(b);
+                b = in.read();
+            }
+            if (b == -1) return -1;
+            held.write(b);
+            pending = held.toByteArray();
+            next = 1;
+            return pending[0] & 0xff;
+        }
+
+        public void close () throws IOException {
+            in.close();
+        }
+    }
+
+    /**
+     * Buffers a response until it exceeds Env.GZIP_THRESHOLD bytes, then
+     * switches the response to gzip encoding and its ETag to the given one.
+     * Small responses are sent as is.
+     */
+    private static class GzipAboveThreshold extends OutputStream {
+        private HttpServletResponse res;
+        private String etag;
+        private ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        private OutputStream out = null;
+
+        GzipAboveThreshold (HttpServletResponse res, String etag) {
+            this.res  = res;
+            this.etag = etag;
+        }
+
+        public void write (int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        public void write (byte[] b, int off, int len) throws IOException {
+            if (out == null && buffer.size() + len > Env.GZIP_THRESHOLD) {
+                res.setHeader("Content-Encoding", "gzip");
+                res.setHeader("ETag", etag);
+                out = new GZIPOutputStream(res.getOutputStream());
+                buffer.writeTo(out);
+                buffer = null;
+            }
+            if (out != null) out.write(b, off, len);
+            else buffer.write(b, off, len);
+        }
+
+        public void close () throws IOException {
+            if (out != null) {
+                out.close();
+                return;
+            }
+            res.setContentLength(buffer.size());
+            buffer.writeTo(res.getOutputStream());
         }
     }
 }
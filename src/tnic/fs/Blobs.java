@@ -0,0 +1,132 @@
+package tnic.fs;
+
+import tnic.cache.AppEngineMemcache;
+import tnic.util.MD5;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Content-addressed cache of file contents. Memcache maps each path to the
+ * MD5 sum of its contents, which is also its entity tag, and each sum to the
+ * contents themselves, so identical files at different paths are cached as
+ * one blob, in memcache and in the near cache, and compiled as one script.
+ * Only the cache is deduplicated: the file system still stores every path in
+ * full. Every put writes the path entry and the blob in one memcache call.
+ */
+public class Blobs {
+    private static final String PATH_PREFIX = "tnic-etag:";
+    private static final String BLOB_PREFIX = "tnic-blob:";
+
+    /**
+     * Get the MD5 sum of the cached contents of a path.
+     * @param path  The path of the file
+     * @return MD5 sum, or null if the path is not cached
+     */
+    public static String hash (String path) {
+        return (String) AppEngineMemcache.get(PATH_PREFIX + path);
+    }
+
+    /**
+     * Get the cached contents of a path.
+     * @param path  The path of the file
+     * @return contents, or null if the path or its blob is not cached
+     */
+    public static String get (String path) {
+        String hash = hash(path);
+        if (hash == null) return null;
+        return (String) AppEngineMemcache.get(BLOB_PREFIX + hash);
+    }
+
+    /**
+     * Get the cached contents of many paths, with one memcache call for the
+     * path entries and one for the blobs.
+     * @param paths The paths of the files
+     * @return Map of the cached paths to their contents
+     */
+    public static Map<String, String> getAll (Collection<String> paths) {
+        List<String> keys = new ArrayList<String>();
+        for (String path : paths) keys.add(PATH_PREFIX + path);
+        Map<String, Object> hashes = AppEngineMemcache.getAll(keys);
+
+        List<String> blobKeys = new ArrayList<String>();
+        for (Object hash : hashes.values()) blobKeys.add(BLOB_PREFIX + hash);
+        Map<String, Object> blobs = AppEngineMemcache.getAll(blobKeys);
+
+        Map<String, String> files = new HashMap<String, String>();
+        for (String path : paths) {
+            Object hash = hashes.get(PATH_PREFIX + path);
+            if (hash == null) continue;
+            String file = (String) blobs.get(BLOB_PREFIX + hash);
+            if (file != null) files.put(path, file);
+        }
+        return files;
+    }
+
+    /**
+     * Cache the contents of a path.
+     * @param path      The path of the file
+     * @param contents  The contents of the file
+     * @param hash      MD5 sum of the UTF-8 contents
+     */
+    public static void put (String path, String contents, String hash) {
+        Map<String, String> entries = new HashMap<String, String>();
+        entries.put(PATH_PREFIX + path, hash);
+        entries.put(BLOB_PREFIX + hash, contents);
+        AppEngineMemcache.putAll(entries);
+    }
+
+    /**
+     * Cache the contents of a path.
+     * @param path      The path of the file
+     * @param contents  The contents of the file
+     */
+    public static void put (String path, String contents) {
+        put(path, contents, sum(contents));
+    }
+
+    /**
+     * Cache the contents of many paths with one memcache call.
+     * @param files Map of the paths to their contents
+     */
+    public static void putAll (Map<String, String> files) {
+        Map<String, String> entries = new HashMap<String, String>();
+        for (Map.Entry<String, String> file : files.entrySet()) {
+            String hash = sum(file.getValue());
+            entries.put(PATH_PREFIX + file.getKey(), hash);
+            entries.put(BLOB_PREFIX + hash, file.getValue());
+        }
+        AppEngineMemcache.putAll(entries);
+    }
+
+    /**
+     * Record the MD5 sum of a path whose contents are not cached, e.g. a
+     * file too large for memcache.
+     * @param path  The path of the file
+     * @param hash  MD5 sum of the UTF-8 contents
+     */
+    public static void putHash (String path, String hash) {
+        AppEngineMemcache.put(PATH_PREFIX + path, hash);
+    }
+
+    /**
+     * Drop the path entry of a file. Its blob may be shared and expires on
+     * its own.
+     * @param path  The path of the file
+     */
+    public static void remove (String path) {
+        AppEngineMemcache.remove(PATH_PREFIX + path);
+    }
+
+    /**
+     * Compute the MD5 sum of contents, as stored in the path entries.
+     * @param contents  The contents of a file
+     * @return MD5 sum of the UTF-8 contents
+     */
+    public static String sum (String contents) {
+        return MD5.sum(contents);
+    }
+}
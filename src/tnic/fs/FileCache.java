@@ -0,0 +1,199 @@
+package tnic.fs;
+
+import tnic.config.Env;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.vfs.FileObject;
+import org.apache.commons.vfs.FileSystemException;
+import com.newatlanta.commons.vfs.provider.gae.GaeVFS;
+
+/**
+ * Keeps resolved FileObjects across requests. GaeVFS caches FileObjects per
+ * thread and expects that cache to be cleared after every request, after which
+ * every file is resolved again. This cache keeps up to
+ * Env.FILE_OBJECT_CACHE_SIZE FileObjects per thread instead, least recently
+ * used evicted first, and only clears the GaeVFS cache once it has resolved
+ * that many files.
+ *
+ * A FileObject is refreshed before it is reused once its path has been
+ * written through invalidate(), by any thread, or once it is older than
+ * Env.FILE_OBJECT_TTL milliseconds, which bounds how long a write by another
+ * instance goes unseen.
+ */
+public class FileCache {
+    private static final AtomicLong hits      = new AtomicLong();
+    private static final AtomicLong misses    = new AtomicLong();
+    private static final AtomicLong refreshes = new AtomicLong();
+    private static final AtomicLong evictions = new AtomicLong();
+
+    /* bumped on every write; an entry older than its path's version is stale.
+     * Writes older than Env.FILE_OBJECT_TTL are pruned, since every entry
+     * resolved before them has expired anyway */
+    private static final AtomicLong version = new AtomicLong();
+    private static final AtomicLong pruned  = new AtomicLong();
+    private static final ConcurrentHashMap<String, Write> written =
+        new ConcurrentHashMap<String, Write>();
+
+    private static final ThreadLocal<Files> files = new ThreadLocal<Files>() {
+        protected Files initialValue () {
+            return new Files();
+        }
+    };
+
+    private static class Write {
+        final long version;
+        final long time;
+
+        Write (long version, long time) {
+            this.version = version;
+            this.time    = time;
+        }
+    }
+
+    private static class Resolved {
+        final FileObject file;
+        long version;
+        long resolved;
+
+        Resolved (FileObject file, long version) {
+            this.file     = file;
+            this.version  = version;
+            this.resolved = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * The FileObjects of one thread, plus how many files it resolved through
+     * GaeVFS since its GaeVFS cache was last cleared.
+     */
+    private static class Files extends LinkedHashMap<String, Resolved> {
+        int resolved = 0;
+
+        Files () {
+            super(16, 0.75f, true);
+        }
+
+        protected boolean removeEldestEntry (Map.Entry<String, Resolved> eldest) {
+            if (size() > Env.FILE_OBJECT_CACHE_SIZE) {
+                evictions.incrementAndGet();
+                return true;
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Resolve a file, reusing the FileObject this thread resolved before.
+     * @param path  The path of the file
+     * @return FileObject for the path
+     */
+    public static FileObject resolve (String path) throws FileSystemException {
+        Files cache = files.get();
+        Resolved entry = cache.get(path);
+        long current = version(path);
+        if (entry == null) {
+            misses.incrementAndGet();
+            cache.resolved++;
+            FileObject file = TnicFileSystem.Manager.resolveFile(path);
+            entry = new Resolved(file, current);
+            cache.put(path, entry);
+            return entry.file;
+        }
+
+        long now = System.currentTimeMillis();
+        if (entry.version != current || now - entry.resolved > Env.FILE_OBJECT_TTL) {
+            refreshes.incrementAndGet();
+            entry.file.refresh();
+            entry.version  = current;
+            entry.resolved = now;
+        }
+        else {
+            hits.incrementAndGet();
+        }
+        return entry.file;
+    }
+
+    /**
+     * Mark a file as written, so every thread refreshes its FileObject before
+     * using it again.
+     * @param path  The path of the file
+     */
+    public static void invalidate (String path) {
+        long now = System.currentTimeMillis();
+        written.put(path, new Write(version.incrementAndGet(), now));
+        prune(now);
+    }
+
+    /**
+     * End the use of the cache by the current request. Clears the GaeVFS
+     * cache of this thread once it has resolved Env.FILE_OBJECT_CACHE_SIZE
+     * files, so it does not grow without bound.
+     */
+    public static void release () {
+        Files cache = files.get();
+        if (cache.resolved >= Env.FILE_OBJECT_CACHE_SIZE) {
+            GaeVFS.clearFilesCache();
+            cache.resolved = 0;
+        }
+    }
+
+    /**
+     * Drop every FileObject of the current thread.
+     */
+    public static void clear () {
+        files.remove();
+        GaeVFS.clearFilesCache();
+    }
+
+    public static long hits () {
+        return hits.get();
+    }
+
+    public static long misses () {
+        return misses.get();
+    }
+
+    public static long refreshes () {
+        return refreshes.get();
+    }
+
+    public static long evictions () {
+        return evictions.get();
+    }
+
+    /**
+     * Construct the cache counters as JSON
+     * @return JSON string of the counters
+     */
+    public static String stats () {
+        return "({ size: "+ files.get().size() +", hits: "+ hits()
+            +", misses: "+ misses() +", refreshes: "+ refreshes()
+            +", evictions: "+ evictions() +" })";
+    }
+
+    private static long version (String path) {
+        Write write = written.get(path);
+        return (write == null) ? 0 : write.version;
+    }
+
+    /**
+     * Drop the writes older than Env.FILE_OBJECT_TTL, at most once per TTL.
+     * An entry refreshed after a pruned write sees version 0 and is refreshed
+     * once more, which is harmless.
+     */
+    private static void prune (long now) {
+        long last = pruned.get();
+        if (now - last < Env.FILE_OBJECT_TTL || !pruned.compareAndSet(last, now)) {
+            return;
+        }
+        Iterator<Write> writes = written.values().iterator();
+        while (writes.hasNext()) {
+            if (now - writes.next().time > Env.FILE_OBJECT_TTL) writes.remove();
+        }
+    }
+}
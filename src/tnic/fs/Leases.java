@@ -0,0 +1,92 @@
+package tnic.fs;
+
+import tnic.config.Env;
+
+import java.util.ConcurrentModificationException;
+import java.util.UUID;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EntityNotFoundException;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.Transaction;
+
+/**
+ * Short leases on paths, held in the datastore so a path is written by one
+ * request at a time across all instances. A lease is an entity named by the
+ * path, taken in a transaction, and expires after Env.FILE_LEASE_TIME
+ * milliseconds so a request that dies holding one does not block the path.
+ */
+class Leases {
+    private static final String KIND = "TnicLease";
+
+    private static class DS {
+        private static final DatastoreService instance =
+            DatastoreServiceFactory.getDatastoreService();
+    }
+
+    /**
+     * Take the lease of a path.
+     * @param path  The path of the file
+     * @return the owner token to release the lease with, or null if another
+     *  request holds it
+     */
+    static String acquire (String path) {
+        Key key = KeyFactory.createKey(KIND, path);
+        String owner = UUID.randomUUID().toString();
+        Transaction tx = DS.instance.beginTransaction();
+        try {
+            long now = System.currentTimeMillis();
+            try {
+                Entity held = DS.instance.get(tx, key);
+                Long expires = (Long) held.getProperty("expires");
+                if (expires != null && expires.longValue() > now) return null;
+            }
+            catch (EntityNotFoundException ex) {
+                /* nobody holds it */
+            }
+            Entity lease = new Entity(key);
+            lease.setUnindexedProperty("owner", owner);
+            lease.setUnindexedProperty("expires", now + Env.FILE_LEASE_TIME);
+            DS.instance.put(tx, lease);
+            tx.commit();
+            return owner;
+        }
+        catch (ConcurrentModificationException ex) {
+            /* another request took it first */
+            return null;
+        }
+        finally {
+            if (tx.isActive()) tx.rollback();
+        }
+    }
+
+    /**
+     * Give up the lease of a path, unless it has expired and been taken by
+     * another request since.
+     * @param path  The path of the file
+     * @param owner The token returned by acquire
+     */
+    static void release (String path, String owner) {
+        Key key = KeyFactory.createKey(KIND, path);
+        Transaction tx = DS.instance.beginTransaction();
+        try {
+            Entity held = DS.instance.get(tx, key);
+            if (owner.equals(held.getProperty("owner"))) {
+                DS.instance.delete(tx, key);
+                tx.commit();
+            }
+        }
+        catch (EntityNotFoundException ex) {
+            /* expired and cleaned up */
+        }
+        catch (ConcurrentModificationException ex) {
+            /* expired and taken, the new owner releases it */
+        }
+        finally {
+            if (tx.isActive()) tx.rollback();
+        }
+    }
+}
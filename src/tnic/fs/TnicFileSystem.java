@@ -1,19 +1,38 @@
 package tnic.fs;
 
-import tnic.cache.AppEngineMemcache;
-import tnic.jsvm.Engine;
+import tnic.jsvm.ScriptCache;
 import tnic.config.Env;
+import tnic.util.MD5;
 
 import org.apache.commons.vfs.*;
 import org.apache.commons.io.IOUtils;
 import com.newatlanta.commons.vfs.provider.gae.GaeVFS;
 
-import java.io.PrintWriter;
 import java.io.IOException;
 import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
 
 public class TnicFileSystem {
+    public static final Charset UTF8 = Charset.forName("UTF-8");
+
     public static FileSystemManager Manager;
+
+    private static final Object[] locks = new Object[64];
+    static {
+        for (int i = 0; i < locks.length; i++) locks[i] = new Object();
+    }
     static {
         try {
             GaeVFS.setRootPath(Env.SERVLET_CONTEXT.getRealPath( "/" ));
@@ -24,41 +43,355 @@ public class TnicFileSystem {
         }
     }
 
+    /* files being loaded into memcache, so concurrent misses load once */
+    private static final ConcurrentHashMap<String, FutureTask<String>> loading =
+        new ConcurrentHashMap<String, FutureTask<String>>();
+
+    /* last contents seen per path, served while a missing file is reloaded */
+    private static final Map<String, String> stale =
+        new LinkedHashMap<String, String>(16, 0.75f, true) {
+            protected boolean removeEldestEntry (Map.Entry<String, String> eldest) {
+                return size() > Env.FILE_STALE_SIZE;
+            }
+        };
+
     /**
-     * Retrieve an ASCII file.
+     * Retrieve an ASCII file. When the file is not in memcache only one
+     * concurrent caller loads it, in its own request thread, and the others
+     * wait for that load. With Env.FILE_STALE_WHILE_REVALIDATE they instead
+     * get the contents last seen while the file is reloaded.
      * @param path  The path of the file to retrieve
      * @return Contents of the file as a String
      */
     public static String getAsciiFile (String path) 
             throws IOException {
-        String file = (String)AppEngineMemcache.get(path);
-        if (file == null) {
-            file = IOUtils.toString(
-                Manager.resolveFile(path).getContent().getInputStream()
-            );
-            AppEngineMemcache.put(path, file);
+        String file = Blobs.get(path);
+        if (file == null && Env.FILE_STALE_WHILE_REVALIDATE
+                && loading.containsKey(path)) {
+            synchronized (stale) {
+                file = stale.get(path);
+            }
+        }
+        else if (file != null && Env.FILE_STALE_WHILE_REVALIDATE) {
+            remember(path, file);
         }
+        if (file == null) file = load(path);
         return ("".equals(file)) ? null : file;
     }
 
     /**
-     * Store an ASCII file.
+     * Retrieve many ASCII files, fetching the cached ones in one memcache call.
+     * A file that cannot be read is logged and left out, so the others are
+     * still returned and cached.
+     * @param paths The paths of the files to retrieve
+     * @return Map of each path read to the contents of the file, or null if
+     *  the file is empty
+     */
+    public static Map<String, String> getAsciiFiles (Collection<String> paths) {
+        Map<String, String> cached = Blobs.getAll(paths);
+        Map<String, String> files = new HashMap<String, String>();
+        Map<String, String> loaded = new HashMap<String, String>();
+        for (String path : paths) {
+            String file = cached.get(path);
+            if (file == null) {
+                try {
+                    file = read(path);
+                }
+                catch (IOException e) {
+                    Env.log.warning(path +": "+ e.toString());
+                    continue;
+                }
+                loaded.put(path, file);
+            }
+            files.put(path, ("".equals(file)) ? null : file);
+        }
+        if (!loaded.isEmpty()) Blobs.putAll(loaded);
+        return files;
+    }
+
+    /**
+     * Open a file for reading, bypassing memcache.
+     * @param path  The path of the file
+     * @return stream of the file contents, to be closed by the caller
+     */
+    public static InputStream openFile (String path) throws IOException {
+        return FileCache.resolve(path).getContent().getInputStream();
+    }
+
+    /**
+     * Write a file to a stream. Files cached in memcache, or small enough to
+     * be cached, are written from memcache; files larger than
+     * Env.FILE_STREAM_THRESHOLD bytes are streamed from the file system
+     * without being held in memory.
+     * @param path  The path of the file
+     * @param out   The stream to write the UTF-8 contents to
+     * @return number of bytes written
+     */
+    public static long copyFile (String path, OutputStream out)
+            throws IOException {
+        String file = Blobs.get(path);
+        if (file == null) {
+            long size = FileCache.resolve(path).getContent().getSize();
+            if (size > Env.FILE_STREAM_THRESHOLD) {
+                InputStream in = openFile(path);
+                try {
+                    return IOUtils.copyLarge(in, out);
+                }
+                finally {
+                    in.close();
+                }
+            }
+            file = getAsciiFile(path);
+            if (file == null) return 0;
+        }
+        byte[] bytes = file.getBytes(UTF8);
+        out.write(bytes);
+        return bytes.length;
+    }
+
+    /**
+     * Retrieve a file as UTF-8 bytes. Small files are served from memcache
+     * as by getAsciiFile, larger ones are read straight into the buffer.
+     * @param path  The path of the file
+     * @return buffer of the file contents
+     */
+    public static ByteBuffer getFile (String path) throws IOException {
+        String file = Blobs.get(path);
+        if (file == null) {
+            FileContent content = FileCache.resolve(path).getContent();
+            long size = content.getSize();
+            if (size > Env.FILE_STREAM_THRESHOLD) {
+                byte[] bytes = new byte[(int) size];
+                InputStream in = content.getInputStream();
+                try {
+                    new DataInputStream(in).readFully(bytes);
+                }
+                finally {
+                    in.close();
+                }
+                return ByteBuffer.wrap(bytes);
+            }
+            file = getAsciiFile(path);
+            if (file == null) return ByteBuffer.allocate(0);
+        }
+        return ByteBuffer.wrap(file.getBytes(UTF8));
+    }
+
+    /**
+     * Get the entity tag of a file, the MD5 sum of its UTF-8 contents. The sum
+     * is the key of the file contents in the Blobs cache. When it is not
+     * cached it is computed from the file system, never from the stale copy
+     * getAsciiFile may serve.
+     * @param path  The path of the file
+     * @return MD5 sum of the file contents
+     */
+    public static String getETag (String path) throws IOException {
+        String etag = Blobs.hash(path);
+        if (etag == null) {
+            long size = FileCache.resolve(path).getContent().getSize();
+            if (size <= Env.FILE_STREAM_THRESHOLD) {
+                /* caches the contents and their sum */
+                etag = MD5.sum(load(path));
+            }
+            else {
+                /* too large to be cached, only its sum is */
+                InputStream in = openFile(path);
+                try {
+                    etag = MD5.sum(in, -1);
+                }
+                finally {
+                    in.close();
+                }
+                Blobs.putHash(path, etag);
+            }
+        }
+        return etag;
+    }
+
+    /**
+     * Store an ASCII file. The file is always written, since the cached sum
+     * of a path may be out of date.
      * @param path      The path (file name) of the file
      * @param contents  The contents of the file
      */
     public static void storeAsciiFile (String path, String contents)
             throws IOException {
-        FileObject file = Manager.resolveFile(path);
+        byte[] bytes = contents.getBytes(UTF8);
+        write(path, new ByteArrayInputStream(bytes));
+        Blobs.put(path, contents, MD5.sum(bytes));
+        if (Env.FILE_STALE_WHILE_REVALIDATE) remember(path, contents);
+        ScriptCache.invalidate(path);
+    }
+
+    /**
+     * Apply an edit to an ASCII file. The edit replaces the characters from
+     * start to end of the version of the file whose entity tag is base. The
+     * file is read from the file system, not memcache, and the edit is
+     * rejected unless the sum of exactly that text is base. Patches of a path
+     * are applied one at a time on all instances, see Leases; a patch made
+     * while another holds the path is rejected too. The file is only written
+     * when the edit changes it.
+     * @param path  The path of the file
+     * @param base  The entity tag of the version the edit was made against
+     * @param start Index of the first replaced character
+     * @param end   Index after the last replaced character
+     * @param text  The replacement text
+     * @return the entity tag of the patched file, or null on a conflict
+     */
+    public static String patchAsciiFile (String path, String base, int start,
+            int end, String text) throws IOException {
+        synchronized (lock(path)) {
+            String lease = Leases.acquire(path);
+            if (lease == null) return null;
+            try {
+                FileCache.resolve(path).refresh();
+                String file = read(path);
+                String etag = MD5.sum(file.getBytes(UTF8));
+                if (!etag.equals(base)) return null;
+
+                if (start < 0 || end < start || end > file.length()) {
+                    throw new IllegalArgumentException(
+                        "Invalid patch range "+ start +"-"+ end +" of "+ path);
+                }
+                String patched = file.substring(0, start) + text + file.substring(end);
+                if (patched.equals(file)) return etag;
+
+                storeAsciiFile(path, patched);
+                return MD5.sum(patched.getBytes(UTF8));
+            }
+            finally {
+                Leases.release(path, lease);
+            }
+        }
+    }
+
+    /**
+     * Store a file from UTF-8 bytes.
+     * @param path      The path of the file
+     * @param contents  The contents of the file, from position to limit
+     */
+    public static void storeFile (String path, ByteBuffer contents)
+            throws IOException {
+        if (contents.hasArray()) {
+            write(path, new ByteArrayInputStream(contents.array(),
+                contents.arrayOffset() + contents.position(), contents.remaining()));
+        }
+        else {
+            byte[] bytes = new byte[contents.remaining()];
+            contents.duplicate().get(bytes);
+            write(path, new ByteArrayInputStream(bytes));
+        }
+        forget(path);
+    }
+
+    /**
+     * Store a file by streaming it into the file system, e.g. from a request
+     * body, without holding it in memory. The file is read into memcache
+     * again on its next use.
+     * @param path  The path of the file
+     * @param in    The UTF-8 contents of the file
+     * @return number of bytes written
+     */
+    public static long storeFile (String path, InputStream in)
+            throws IOException {
+        long n = write(path, in);
+        forget(path);
+        return n;
+    }
+
+    private static long write (String path, InputStream in) throws IOException {
+        FileObject file = FileCache.resolve(path);
         file.createFile();
-        IOUtils.copy(
-            new ByteArrayInputStream(contents.getBytes()),
-            file.getContent().getOutputStream()
-        );
-        file.close();
-        AppEngineMemcache.put(path, contents);
+        OutputStream out = file.getContent().getOutputStream();
+        try {
+            return IOUtils.copyLarge(in, out);
+        }
+        finally {
+            out.close();
+            file.close();
+            FileCache.invalidate(path);
+        }
+    }
+
+    /* patches of one path on this instance wait for each other */
+    private static Object lock (String path) {
+        return locks[(path.hashCode() & 0x7fffffff) % locks.length];
+    }
+
+    /**
+     * Drop every cached form of a file.
+     */
+    private static void forget (String path) {
+        Blobs.remove(path);
+        synchronized (stale) {
+            stale.remove(path);
+        }
+        ScriptCache.invalidate(path);
     }
 
+    /**
+     * Load a file into memcache, or wait for the load already in progress.
+     */
+    private static String load (String path) throws IOException {
+        FutureTask<String> task = loader(path);
+        FutureTask<String> first = loading.putIfAbsent(path, task);
+        if (first == null) {
+            try {
+                task.run();
+            }
+            finally {
+                loading.remove(path, task);
+            }
+            first = task;
+        }
+        try {
+            return first.get();
+        }
+        catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted loading "+ path);
+        }
+        catch (ExecutionException ex) {
+            if (ex.getCause() instanceof IOException) {
+                throw (IOException) ex.getCause();
+            }
+            throw new IOException(ex.getCause().toString());
+        }
+    }
+
+    private static FutureTask<String> loader (final String path) {
+        return new FutureTask<String>(new Callable<String>() {
+            public String call () throws IOException {
+                String file = read(path);
+                Blobs.put(path, file);
+                if (Env.FILE_STALE_WHILE_REVALIDATE) remember(path, file);
+                return file;
+            }
+        });
+    }
+
+    private static String read (String path) throws IOException {
+        /* the FileObject is reused, so its content stream must be closed */
+        InputStream in = openFile(path);
+        try {
+            return IOUtils.toString(in, "UTF-8");
+        }
+        finally {
+            in.close();
+        }
+    }
+
+    private static void remember (String path, String file) {
+        synchronized (stale) {
+            stale.put(path, file);
+        }
+    }
+
+    /**
+     * End the use of the file system by the current request. Resolved files
+     * stay cached, see FileCache.
+     */
     public static void cleanup () {
-        GaeVFS.clearFilesCache();
+        FileCache.release();
     }
 }
@@ -0,0 +1,97 @@
+package tnic.jsvm;
+
+import tnic.fs.TnicFileSystem;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.concurrent.Callable;
+
+import org.mozilla.javascript.EvaluatorException;
+import org.mozilla.javascript.RhinoException;
+
+/**
+ * A tnic application stored in the tnic file system.
+ */
+public class App {
+    private String path;
+
+    /**
+     * Sole constructor.
+     * @param path  The path of the app source in the tnic file system
+     */
+    public App (String path) {
+        this.path = path;
+    }
+
+    /**
+     * Load the compiled form of this app. The compiled script is served from
+     * the ScriptCache unless the source has changed since it was compiled.
+     * @return CompiledScript instance
+     */
+    public CompiledScript load () throws TnicExecutableException {
+        String src;
+        try {
+            src = TnicFileSystem.getAsciiFile(this.path);
+        }
+        catch (IOException ex) {
+            throw new TnicExecutableException(
+                TnicExecutableException.NOT_FOUND, ex.getMessage());
+        }
+        if (src == null) {
+            throw new TnicExecutableException(
+                TnicExecutableException.NOT_FOUND, "App not found: "+ this.path);
+        }
+        try {
+            return ScriptCache.get(this.path, src);
+        }
+        catch (EvaluatorException ex) {
+            throw new TnicExecutableException(
+                TnicExecutableException.COMPILE, ex.getMessage());
+        }
+    }
+
+    /**
+     * Run this app.
+     * @param argv  The app arguments as a javascript source string
+     * @return result of app execution
+     */
+    public String run (String argv) throws TnicExecutableException {
+        return run(argv, null);
+    }
+
+    /**
+     * Run this app, letting it stream output to a Writer through '$out'.
+     * Results of cacheable apps are served from the ResultCache unless output
+     * is streamed.
+     * @param argv  The app arguments as a javascript source string
+     * @param out   The Writer to stream output to, or null
+     * @return result of app execution, written after any streamed output
+     */
+    public String run (final String argv, Writer out)
+            throws TnicExecutableException {
+        final CompiledScript script = load();
+        if (out == null && script.getCacheTtl() > 0) {
+            return ResultCache.get(script, argv, new Callable<String>() {
+                public String call () throws TnicExecutableException {
+                    return run(script, argv, null);
+                }
+            });
+        }
+        return run(script, argv, out);
+    }
+
+    private String run (CompiledScript script, String argv, Writer out)
+            throws TnicExecutableException {
+        try {
+            return Engine.eval(script, argv, this.path, out);
+        }
+        catch (RhinoException ex) {
+            throw new TnicExecutableException(
+                TnicExecutableException.RUNTIME, ex.getMessage());
+        }
+    }
+
+    public String getPath () {
+        return this.path;
+    }
+}
@@ -0,0 +1,103 @@
+package tnic.jsvm;
+
+import tnic.config.Env;
+import tnic.fs.TnicFileSystem;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Runs a batch of app invocations in one request. A batch is a JSON array of
+ * objects of the form { "app": path, "arg": argv }, where argv is either a
+ * javascript source string, as the 'arg' parameter of /run, or any other JSON
+ * value. The result is a JSON array of the app results in invocation order.
+ * Each element is a string holding the result exactly as /run returns it for
+ * that invocation, javascript source that is not always JSON itself; an
+ * invocation that fails yields a standard error message in its place.
+ *
+ * Requests on App Engine cannot start threads, so the invocations run one
+ * after another in the request thread. A batch still saves a round trip per
+ * invocation, and loads the sources of its apps with one memcache call.
+ */
+public class Batch {
+    public static final int BAD_REQUEST = 6;
+
+    /**
+     * Run a batch.
+     * @param body  The JSON array of invocations
+     * @return JSON array of the results, each as a string of javascript
+     *  source
+     */
+    public static String run (String body) {
+        JSONArray invocations;
+        try {
+            invocations = new JSONArray(body);
+        }
+        catch (JSONException ex) {
+            return Engine.error(BAD_REQUEST, "Invalid batch: "+ ex.getMessage());
+        }
+        if (invocations.length() > Env.BATCH_MAX_SIZE) {
+            return Engine.error(BAD_REQUEST,
+                "Batch exceeds "+ Env.BATCH_MAX_SIZE +" invocations");
+        }
+
+        prefetch(invocations);
+
+        JSONArray array = new JSONArray();
+        for (int i = 0; i < invocations.length(); i++) {
+            array.put(invoke(invocations.opt(i)));
+        }
+        return array.toString();
+    }
+
+    /**
+     * Load the sources of all apps of a batch with one memcache call, so the
+     * invocations find them in the near cache.
+     */
+    private static void prefetch (JSONArray invocations) {
+        if (Env.NEAR_CACHE_BYTES <= 0) return;
+        Set<String> apps = new HashSet<String>();
+        for (int i = 0; i < invocations.length(); i++) {
+            JSONObject invocation = invocations.optJSONObject(i);
+            if (invocation != null && invocation.has("app")) {
+                apps.add(invocation.optString("app"));
+            }
+        }
+        /* a missing app is left out and fails its own invocation */
+        TnicFileSystem.getAsciiFiles(apps);
+    }
+
+    private static String invoke (Object item) {
+        if (!(item instanceof JSONObject) || !((JSONObject) item).has("app")) {
+            return Engine.error(BAD_REQUEST,
+                "Invocation must be an object with an app");
+        }
+        JSONObject invocation = (JSONObject) item;
+        try {
+            return new App(invocation.optString("app"))
+                .run(argv(invocation.opt("arg")));
+        }
+        catch (TnicExecutableException ex) {
+            return ex.toString();
+        }
+        catch (RuntimeException ex) {
+            /* one failing invocation does not fail the others */
+            Env.log.severe (ex.toString ());
+            return Engine.error(4, "An error occurred.");
+        }
+    }
+
+    /**
+     * Convert the 'arg' of an invocation into the javascript source the app
+     * evaluates as its $argv.
+     */
+    private static String argv (Object arg) {
+        if (arg == null || arg == JSONObject.NULL) return null;
+        if (arg instanceof String) return (String) arg;
+        return arg.toString();
+    }
+}
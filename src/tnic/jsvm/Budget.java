@@ -0,0 +1,63 @@
+package tnic.jsvm;
+
+/**
+ * The instruction and wall-clock budget of a single script execution. Charged
+ * by TnicContextFactory every TnicContextFactory.OBSERVER_THRESHOLD
+ * instructions; throws a BudgetExceededError once either limit is passed.
+ */
+public class Budget {
+    private String app;
+    private long instructionLimit;
+    private long deadline;
+    private long start;
+    private long instructions = 0;
+    private Budget previous;
+
+    /**
+     * Sole constructor.
+     * @param app               The path of the app, or null
+     * @param instructionLimit  Maximum instructions, 0 for no limit
+     * @param timeLimit         Maximum wall-clock milliseconds, 0 for no limit
+     * @param previous          The budget this one is nested in, or null
+     */
+    public Budget (String app, long instructionLimit, long timeLimit,
+            Budget previous) {
+        this.app              = app;
+        this.instructionLimit = instructionLimit;
+        this.start            = System.currentTimeMillis();
+        this.deadline         = (timeLimit > 0) ? this.start + timeLimit : 0;
+        this.previous         = previous;
+    }
+
+    /**
+     * Charge instructions against this budget.
+     * @param count Number of instructions executed since the last charge
+     */
+    public void charge (int count) {
+        this.instructions += count;
+        if (this.instructionLimit > 0 && this.instructions > this.instructionLimit) {
+            throw new BudgetExceededError(
+                "instruction limit of "+ this.instructionLimit +" exceeded");
+        }
+        if (this.deadline > 0 && System.currentTimeMillis() > this.deadline) {
+            throw new BudgetExceededError(
+                "time limit of "+ (this.deadline - this.start) +"ms exceeded");
+        }
+    }
+
+    public String getApp () {
+        return this.app;
+    }
+
+    public long getInstructions () {
+        return this.instructions;
+    }
+
+    public long getElapsed () {
+        return System.currentTimeMillis() - this.start;
+    }
+
+    public Budget getPrevious () {
+        return this.previous;
+    }
+}
@@ -0,0 +1,11 @@
+package tnic.jsvm;
+
+/**
+ * Thrown into a running script when it exceeds its Budget. This is an Error so
+ * that the script cannot catch it and keep running.
+ */
+public class BudgetExceededError extends Error {
+    public BudgetExceededError (String message) {
+        super(message);
+    }
+}
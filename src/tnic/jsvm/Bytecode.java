@@ -0,0 +1,195 @@
+package tnic.jsvm;
+
+import tnic.cache.AppEngineMemcache;
+import tnic.config.Env;
+import tnic.util.MD5;
+
+import java.io.Serializable;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.mozilla.javascript.CompilerEnvirons;
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.Script;
+import org.mozilla.javascript.optimizer.ClassCompiler;
+
+/**
+ * The class files the Rhino class compiler generated for an app, the
+ * persisted form of a CompiledScript. Bytecode is shared between instances
+ * through memcache, keyed by the MD5 sum of the prepared app source, so an
+ * instance that has never run an app defines its classes instead of
+ * compiling the source, and classes compiled from an older wrapper of the
+ * source are never reused. A Bytecode carries the MD5 sum of the source it
+ * was compiled from and of its class files, and one found in memcache is
+ * only defined if both still match. Every Bytecode defines its classes
+ * through its own ClassLoader, so classes of different apps never clash and
+ * are unloaded with their scripts.
+ */
+public class Bytecode implements Serializable {
+    private static final long serialVersionUID = 2L;
+
+    private static final String PREFIX = "tnic-class:";
+
+    private static final AtomicLong hits   = new AtomicLong();
+    private static final AtomicLong misses = new AtomicLong();
+
+    private final String source;
+    private final String mainClass;
+    private final String[] names;
+    private final byte[][] classes;
+    private final String digest;
+
+    /**
+     * Defines the classes of one Bytecode, looking up the generated classes
+     * it needs first and everything else, such as Rhino, through the
+     * ClassLoader of tnic.
+     */
+    private static class Loader extends ClassLoader {
+        private final Map<String, byte[]> classes = new HashMap<String, byte[]>();
+
+        Loader (Bytecode code) {
+            super(Bytecode.class.getClassLoader());
+            for (int i = 0; i < code.names.length; i++) {
+                classes.put(code.names[i], code.classes[i]);
+            }
+        }
+
+        protected synchronized Class loadClass (String name, boolean resolve)
+                throws ClassNotFoundException {
+            Class c = findLoadedClass(name);
+            if (c == null && classes.containsKey(name)) c = findClass(name);
+            if (c == null) return super.loadClass(name, resolve);
+            if (resolve) resolveClass(c);
+            return c;
+        }
+
+        protected Class findClass (String name) throws ClassNotFoundException {
+            byte[] bytes = classes.remove(name);
+            if (bytes == null) throw new ClassNotFoundException(name);
+            return defineClass(name, bytes, 0, bytes.length);
+        }
+    }
+
+    /**
+     * Build a Bytecode from the output of ClassCompiler.compileToClassFiles,
+     * whose first class is the script.
+     */
+    private Bytecode (String source, Object[] compiled) {
+        this.source    = source;
+        this.mainClass = (String) compiled[0];
+        this.names     = new String[compiled.length / 2];
+        this.classes   = new byte[compiled.length / 2][];
+        for (int i = 0; i < names.length; i++) {
+            names[i]   = (String) compiled[2 * i];
+            classes[i] = (byte[]) compiled[2 * i + 1];
+        }
+        this.digest = digest();
+    }
+
+    /**
+     * Compile prepared javascript source into class files with the settings
+     * of a Context.
+     * @param cx        The current Context
+     * @param src       The prepared source, see Engine.prepare
+     * @param className The name of the script class
+     * @return Bytecode instance
+     */
+    public static Bytecode compile (Context cx, String src, String className) {
+        CompilerEnvirons env = new CompilerEnvirons();
+        env.initFromContext(cx);
+        ClassCompiler compiler = new ClassCompiler(env);
+        return new Bytecode(MD5.sum(src),
+            compiler.compileToClassFiles(src, "RUN", 0, className));
+    }
+
+    /**
+     * Define the classes in a new ClassLoader and instantiate the script.
+     * @return the Script
+     */
+    public Script define () {
+        try {
+            return (Script) new Loader(this).loadClass(mainClass)
+                .getDeclaredConstructor().newInstance();
+        }
+        catch (Exception e) {
+            throw new IllegalStateException(e.toString());
+        }
+    }
+
+    /**
+     * Get the size of the class files.
+     * @return size in bytes
+     */
+    public int size () {
+        int size = 0;
+        for (byte[] bytes : classes) size += bytes.length;
+        return size;
+    }
+
+    /**
+     * Find the persisted compiled form of an app.
+     * @param src   The javascript source of the app
+     * @return CompiledScript instance, or null if no instance persisted it
+     */
+    public static CompiledScript lookup (String src) {
+        if (!Env.BYTECODE_CACHE) return null;
+        String sum = MD5.sum(Engine.prepare(src, false));
+        Bytecode code = (Bytecode) AppEngineMemcache.get(PREFIX + sum);
+        if (code != null && !code.matches(sum)) {
+            Env.log.warning ("Ignoring bytecode that does not match its source: "
+                + sum);
+            code = null;
+        }
+        if (code == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        return new CompiledScript(code.define(), code);
+    }
+
+    /**
+     * Persist the compiled form of an app, if it has one.
+     * @param src       The javascript source of the app
+     * @param script    The compiled app
+     */
+    public static void store (String src, CompiledScript script) {
+        Bytecode code = script.getSerializableScript();
+        if (!Env.BYTECODE_CACHE || code == null) return;
+        AppEngineMemcache.put(key(src), code);
+    }
+
+    public static long hits () {
+        return hits.get();
+    }
+
+    public static long misses () {
+        return misses.get();
+    }
+
+    private static String key (String src) {
+        return PREFIX + MD5.sum(Engine.prepare(src, false));
+    }
+
+    /**
+     * Check that this was compiled from the prepared source with the given
+     * sum, and that its class files are the ones compiled.
+     */
+    private boolean matches (String sum) {
+        return sum.equals(source) && mainClass != null
+            && names != null && classes != null
+            && names.length == classes.length && digest().equals(digest);
+    }
+
+    /* the MD5 sum of the class names and files */
+    private String digest () {
+        StringBuilder sums = new StringBuilder(mainClass);
+        for (int i = 0; i < names.length; i++) {
+            if (names[i] == null || classes[i] == null) return "";
+            sums.append(' ').append(names[i])
+                .append(' ').append(MD5.sum(classes[i]));
+        }
+        return MD5.sum(sums.toString());
+    }
+}
@@ -1,38 +1,76 @@
 package tnic.jsvm;
 
-import tnic.config.Env;
-
-import java.io.Serializable;
-
-import org.mozilla.javascript.Context;
-import org.mozilla.javascript.Function;
+import org.mozilla.javascript.Script;
 
 /**
- * Represents compiled Javascript code. This object is immutable.
+ * Represents compiled Javascript code. This object is immutable. The script is
+ * not bound to any scope, so one instance can be executed concurrently against
+ * a separate scope per execution.
  */
 public class CompiledScript {
-    private Function script;
+    private Script script;
+    private String hash;
+    private long cacheTtl;
+    private Bytecode bytecode;
+
+    /**
+     * Build a CompiledScript from a Script object.
+     */
+    public CompiledScript (Script s) {
+        this(s, null, 0, null);
+    }
+
+    /**
+     * Build a CompiledScript from a Script object defined from class files.
+     * @param s         The compiled script
+     * @param bytecode  The class files of the script
+     */
+    public CompiledScript (Script s, Bytecode bytecode) {
+        this(s, null, 0, bytecode);
+    }
 
     /**
-     * Build a CompiledScript from a Function object.
+     * Build a CompiledScript from a Script object compiled from a known source.
+     * @param s         The compiled script
+     * @param hash      The MD5 sum of the source
+     * @param cacheTtl  Milliseconds results may be cached, 0 if not cacheable
+     * @param bytecode  The class files of the script, or null
      */
-    public CompiledScript (Function f) {
-        this.script = f;
+    public CompiledScript (Script s, String hash, long cacheTtl,
+            Bytecode bytecode) {
+        this.script   = s;
+        this.hash     = hash;
+        this.cacheTtl = cacheTtl;
+        this.bytecode = bytecode;
     }
 
     /**
-     * Get the org.mozilla.javascript.Function that this script contains.
-     * @return Function
+     * Get the org.mozilla.javascript.Script that this script contains.
+     * Executing it defines the 'run' function in the given scope.
+     * @return Script
      */
-    public Function getScriptFunction () {
+    public Script getScript () {
         return this.script;
     }
-    public Serializable getSerializableScript () {
-        //final Function realScript = this.script;
-        //return new Serializable() {
-            //public Function script = realScript;
-        //};
-        //return this.scrip
-        return null;
+
+    public String getHash () {
+        return this.hash;
+    }
+
+    /**
+     * Get how long results of this script may be cached, see ResultCache.
+     * @return time to live in milliseconds, 0 if not cacheable
+     */
+    public long getCacheTtl () {
+        return this.cacheTtl;
+    }
+
+    /**
+     * Get the persistable form of this script, see Bytecode.
+     * @return Bytecode, or null if the script was interpreted, loaded from
+     *  a precompiled class or is held by the ScriptCache
+     */
+    public Bytecode getSerializableScript () {
+        return this.bytecode;
     }
 }
@@ -0,0 +1,89 @@
+package tnic.jsvm;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Writer;
+
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.Scriptable;
+
+/**
+ * Lets a running script stream output instead of building one result string.
+ * Bound to '$out' in the scope of scripts run with a Writer, e.g. /run with
+ * stream=true:
+ *
+ *   $out.write("text");    writes the string form of a value
+ *   $out.emit(obj);        writes the source form of a value
+ *   $out.flush();          sends everything written so far
+ *
+ * Once the client has gone away the script is stopped with a
+ * StreamClosedError. A PrintWriter, such as that of a servlet response, never
+ * throws but records the error, and checking it flushes, so it is checked on
+ * every flush() and after every CHECK_BYTES characters written.
+ */
+public class Emitter {
+    private static final int CHECK_BYTES = 8 * 1024;
+
+    private Writer out;
+    private Scriptable scope;
+    private int unchecked = 0;
+
+    /**
+     * Sole constructor.
+     * @param out   The Writer to stream to
+     * @param scope The scope of the script execution
+     */
+    public Emitter (Writer out, Scriptable scope) {
+        this.out   = out;
+        this.scope = scope;
+    }
+
+    /**
+     * Write the string form of a value.
+     * @param value The value to write
+     */
+    public void write (Object value) {
+        print(Context.toString(value));
+    }
+
+    /**
+     * Write the source form of a value, as the value's toSource() method
+     * returns it.
+     * @param value The value to write
+     */
+    public void emit (Object value) {
+        print(Engine.toSource(Context.getCurrentContext(), this.scope, value));
+    }
+
+    /**
+     * Flush the output written so far to the client.
+     */
+    public void flush () {
+        try {
+            this.out.flush();
+        }
+        catch (IOException e) {
+            throw new StreamClosedError(e.toString());
+        }
+        check();
+    }
+
+    private void print (String s) {
+        try {
+            this.out.write(s);
+        }
+        catch (IOException e) {
+            throw new StreamClosedError(e.toString());
+        }
+        this.unchecked += s.length();
+        if (this.unchecked >= CHECK_BYTES) check();
+    }
+
+    private void check () {
+        this.unchecked = 0;
+        if (this.out instanceof PrintWriter
+                && ((PrintWriter) this.out).checkError()) {
+            throw new StreamClosedError("Client disconnected");
+        }
+    }
+}
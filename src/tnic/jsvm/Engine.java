@@ -1,30 +1,126 @@
 package tnic.jsvm;
 
 import tnic.config.Env;
+import tnic.util.MD5;
+
+import java.io.Writer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import org.mozilla.javascript.Context;
 import org.mozilla.javascript.EvaluatorException;
 import org.mozilla.javascript.Function;
 import org.mozilla.javascript.ImporterTopLevel;
+import org.mozilla.javascript.Script;
+import org.mozilla.javascript.ScriptRuntime;
 import org.mozilla.javascript.Scriptable;
+import org.mozilla.javascript.ScriptableObject;
+import org.mozilla.javascript.Undefined;
 
 /**
  * Creates the runtime environment for running tnic javascript programs.
  */
 public class Engine {
     private static String ARGV        = "$argv";
-    private static String ARGV_STRING = ARGV + "_string";
+    private static String ARGV_SOURCE = ARGV + "_source";
+    private static String OUT         = "$out";
+    private static String RUN         = "run";
     private static String WRAPPER_PREFIX_COMPILE_1 =
-        "function run ("+ ARGV +"_string) {"
+        "function "+ RUN +" ("+ ARGV +", "+ ARGV_SOURCE +") {"
     ;
     private static String WRAPPER_PREFIX_COMPILE_2 = "return ";
-    private static String IMPORT_AND_DEFINE = 
+    private static String IMPORT =
         "importPackage(Packages.tnic.util);"
       + "importPackage(Packages.tnic.config);"
-      + "var "+ ARGV +" = eval("+ ARGV_STRING +");"
     ;
-    private static String WRAPPER_SUFFIX = ".toSource(); ";
+    /* arguments that are not literals are evaluated by the script itself,
+     * where the functions it declares are defined */
+    private static String DEFINE =
+        "if ("+ ARGV_SOURCE +" != null) "+ ARGV +" = eval("+ ARGV_SOURCE +");"
+    ;
+    private static String WRAPPER_SUFFIX = "; ";
     private static String WRAPPER_SUFFIX_COMPILE = "}" ;
+    private static String ERROR_PREFIX = "({ error : ";
+    private static String CLASS_PREFIX = "tnic.apps.c";
+
+    /* precompiled Javascript classes, instantiated once per class */
+    private static final ConcurrentMap<Class<?>, CompiledScript> modules =
+        new ConcurrentHashMap<Class<?>, CompiledScript>();
+
+    /**
+     * Holds the compiled imports that are run in every new scope when shared
+     * scope mode is off. Compiled on first use.
+     */
+    private static class ImportScript {
+        private static final Script instance = build();
+
+        private static Script build () {
+            Context cx = enter();
+            try {
+                return cx.compileString(IMPORT, "IMPORT", 0, null);
+            }
+            finally {
+                Context.exit();
+            }
+        }
+    }
+
+    /**
+     * Holds the sealed top-level scope shared by all executions in shared
+     * scope mode. Built on first use.
+     */
+    private static class SharedScope {
+        private static final Scriptable instance = build();
+
+        private static Scriptable build () {
+            Context cx = enter();
+            try {
+                ImporterTopLevel scope = new ImporterTopLevel(cx, true);
+                cx.evaluateString(scope, IMPORT, "IMPORT", 0, null);
+                RequestScope.defineImportFunctions(scope);
+                Modules.defineRequire(scope);
+                scope.sealObject();
+                return scope;
+            }
+            finally {
+                Context.exit();
+            }
+        }
+    }
+
+    /**
+     * Enter a Context made by the TnicContextFactory. Must be paired with
+     * Context.exit().
+     * @return the Context for the current thread
+     */
+    public static Context enter () {
+        return TnicContextFactory.getInstance().enterContext();
+    }
+
+    /**
+     * Get the sealed top-level scope shared by all executions. Contains the
+     * standard objects, the tnic.util and tnic.config imports and require().
+     * @return the shared scope
+     */
+    public static Scriptable sharedScope () {
+        return SharedScope.instance;
+    }
+
+    /**
+     * Creates the top-level scope for a single script execution. In shared
+     * scope mode (Env.SHARED_SCOPE) this is a RequestScope whose prototype is
+     * the shared scope, otherwise a fresh ImporterTopLevel with the tnic.util
+     * and tnic.config imports and require().
+     * @param cx    The current Context
+     * @return a new top-level scope
+     */
+    public static Scriptable newScope (Context cx) {
+        if (Env.SHARED_SCOPE) return new RequestScope(sharedScope());
+        ImporterTopLevel scope = new ImporterTopLevel(cx);
+        ImportScript.instance.exec(cx, scope);
+        Modules.defineRequire(scope);
+        return scope;
+    }
 
     /**
      * Compiles Javascript source. Wraps the source code inside a function
@@ -33,14 +129,27 @@ public class Engine {
      * @return CompiledScript instance
      */
     public static CompiledScript compile (String src) {
-        Context cx = Context.enter();
-        cx.initStandardObjects();
+        return compile(src, MD5.sum(src));
+    }
+
+    /**
+     * Compiles Javascript source whose MD5 sum is known. Unless the
+     * interpreter is selected the script keeps its class files, see Bytecode.
+     * @param src   The javascript source code as a String
+     * @param hash  The MD5 sum of the source
+     * @return CompiledScript instance
+     */
+    public static CompiledScript compile (String src, String hash) {
+        Context cx = enter();
         try {
-            return new CompiledScript(cx.compileFunction(
-                /* scope */  new ImporterTopLevel(cx),
-                /* source */ prepare(src, false),
-                "RUN", 0, null
-            ));
+            if (cx.getOptimizationLevel() < 0) {
+                return new CompiledScript(
+                    cx.compileString(prepare(src, false), "RUN", 0, null)
+                );
+            }
+            Bytecode code = Bytecode.compile(
+                cx, prepare(src, false), CLASS_PREFIX + hash);
+            return new CompiledScript(code.define(), code);
         }
         finally {
             Context.exit();
@@ -48,26 +157,46 @@ public class Engine {
     }
 
     /**
-     * Prepares the javascript source string for compilation.
+     * Prepares the javascript source string for compilation. The imports are
+     * not part of the source; every scope from newScope() already has them,
+     * so the prepared source is the same in either scope mode. The arguments
+     * are decoded before the script runs, see argv(), unless they have to be
+     * evaluated, which the script then does before its body.
      */
     public static String prepare (String core, boolean eval) {
         String src = "";
         if (!eval) {
             src += WRAPPER_PREFIX_COMPILE_1;
-            src += IMPORT_AND_DEFINE;
+            src += DEFINE;
             src += WRAPPER_PREFIX_COMPILE_2;
             src += core;
             src += WRAPPER_SUFFIX;
             src += WRAPPER_SUFFIX_COMPILE;
         }
         else {
-            src += IMPORT_AND_DEFINE;
+            src += DEFINE;
             src += core;
             src += WRAPPER_SUFFIX;
         }
         return src;
     }
 
+    /**
+     * Decode app arguments into the value of $argv. JSON and plain literals
+     * are parsed by Literals; other javascript is left for the script to
+     * evaluate, with the functions it declares in scope, when Env.ARGV_EVAL
+     * allows it.
+     * @param cx    The current Context
+     * @param scope The scope of the script
+     * @param argv  The app arguments as a javascript source string, or null
+     * @return the value of $argv, or Scriptable.NOT_FOUND if the arguments
+     *  are not a literal
+     */
+    public static Object argv (Context cx, Scriptable scope, String argv) {
+        if (argv == null) return null;
+        return Literals.parse(cx, scope, argv);
+    }
+
     /**
      * Evaluates Javascript source directly.
      * @param src   The javascript source code as a String
@@ -75,40 +204,114 @@ public class Engine {
      */
     public static String eval (String src, String argv) {
         if (src == null) return null;
-        Context cx = Context.enter();
-        Scriptable scope = cx.initStandardObjects();
-        scope.setParentScope(new ImporterTopLevel(cx));
-        scope.put(ARGV_STRING, scope, (Object)argv);
-        
+        Context cx = enter();
+        Budget budget = null;
+        boolean overBudget = false;
         try {
-            return cx.evaluateString(scope, prepare(src, true), "RUN", 0, null)
-                .toString();
+            Scriptable scope = newScope(cx);
+            budget = Governor.begin(cx, null);
+            Object args = argv(cx, scope, argv);
+            String source = null;
+            if (args == Scriptable.NOT_FOUND) {
+                if (!Env.ARGV_EVAL) return invalidArgv();
+                args   = Undefined.instance;
+                source = argv;
+            }
+            scope.put(ARGV, scope, args);
+            scope.put(ARGV_SOURCE, scope, source);
+            return toSource(cx, scope,
+                cx.evaluateString(scope, prepare(src, true), "RUN", 0, null));
         }
         catch (EvaluatorException ex) {
             return null;
         }
+        catch (BudgetExceededError ex) {
+            overBudget = true;
+            return error(TnicExecutableException.BUDGET, ex.getMessage());
+        }
         finally {
+            /* no budget yet if building the scope failed */
+            if (budget != null) Governor.end(cx, budget, overBudget);
             Context.exit();
         }
     }
 
     /**
-     * Evaluates a compiled script. Invokes the 'run' function that wraps the
-     * subroutine.
+     * Evaluates a compiled script. Executes the script in a new scope to
+     * define the 'run' function that wraps the subroutine, then invokes it.
      * @param script    The script to compile
      * @param argv      A collection of arguments
      * @return result of script evaluation
      */
     public static String eval (CompiledScript script, String argv) {
+        return eval(script, argv, null);
+    }
+
+    /**
+     * Evaluates a compiled script within the execution budget, recording the
+     * budget usage under the app path. An execution that runs out of budget
+     * is terminated and returns a standard error message.
+     * @param script    The script to compile
+     * @param argv      A collection of arguments
+     * @param app       The path of the app, or null
+     * @return result of script evaluation
+     */
+    public static String eval (CompiledScript script, String argv, String app) {
+        return eval(script, argv, app, null);
+    }
+
+    /**
+     * Evaluates a compiled script, optionally streaming output. When out is
+     * given the script can write to it incrementally through the Emitter
+     * bound to '$out'; a script that streams all of its output and evaluates
+     * to undefined then returns an empty result, as does a script stopped
+     * because the client went away.
+     * @param script    The script to compile
+     * @param argv      A collection of arguments
+     * @param app       The path of the app, or null
+     * @param out       The Writer to stream output to, or null
+     * @return result of script evaluation
+     */
+    public static String eval (CompiledScript script, String argv, String app,
+            Writer out) {
         if (script == null) return null;
-        Context cx = Context.enter();
-        Scriptable scope = cx.initStandardObjects();
+        Context cx = enter();
+        Budget budget = null;
+        boolean overBudget = false;
         try {
-            return script.getScriptFunction().call(
-                cx, scope, scope, new Object [] { (Object)argv }
-            ).toString();
+            Scriptable scope = newScope(cx);
+            if (out != null) {
+                scope.put(OUT, scope,
+                    Context.javaToJS(new Emitter(out, scope), scope));
+            }
+            budget = Governor.begin(cx, app);
+            Object args = argv(cx, scope, argv);
+            String source = null;
+            if (args == Scriptable.NOT_FOUND) {
+                if (!Env.ARGV_EVAL) return invalidArgv();
+                args   = Undefined.instance;
+                source = argv;
+            }
+            script.getScript().exec(cx, scope);
+            Function run = (Function) scope.get(RUN, scope);
+            Object result = run.call(
+                cx, scope, scope, new Object [] { args, source }
+            );
+            if (out != null && result == Undefined.instance) return "";
+            return toSource(cx, scope, result);
+        }
+        catch (BudgetExceededError ex) {
+            overBudget = true;
+            return error(TnicExecutableException.BUDGET, ex.getMessage());
+        }
+        catch (StreamClosedError ex) {
+            /* nobody is left to read a result */
+            Env.log.info (app +": "+ ex.getMessage());
+            return "";
         }
         finally {
+            /* no budget yet if building the scope failed */
+            if (budget != null) Governor.end(cx, budget, overBudget);
             Context.exit();
         }
     }
@@ -116,17 +319,30 @@ public class Engine {
     /**
      * Evaluates a compiled Javascript class.
      */
-    public static String eval (Class module, String argv) {
+    public static String eval (Class<?> module, String argv) {
+        return eval(load(module), argv);
+    }
+
+    /**
+     * Get the CompiledScript for a compiled Javascript class. The class is
+     * instantiated once; later calls return the cached instance.
+     * @param module    A class generated by the Rhino class compiler
+     * @return CompiledScript instance, or null if the class is not a script
+     */
+    public static CompiledScript load (Class<?> module) {
+        if (module == null) return null;
+        CompiledScript script = modules.get(module);
+        if (script != null) return script;
         try {
-            return module.getMethod("run", Object.class).invoke(
-                /* instance */  module.newInstance(),
-                /* args */      argv
-            ).toString();
+            script = new CompiledScript(
+                (Script) module.getDeclaredConstructor().newInstance());
         }
         catch (Exception e) {
             e.printStackTrace();
             return null;
         }
+        CompiledScript existing = modules.putIfAbsent(module, script);
+        return (existing != null) ? existing : script;
     }
 
     /**
@@ -134,7 +350,7 @@ public class Engine {
      * @param name the name of the class
      * @return the Class descriptor if found, null otherwise
      */
-    public static Class locate (String name) {
+    public static Class<?> locate (String name) {
         try {
             return Class.forName(name);
         }
@@ -143,6 +359,23 @@ public class Engine {
         }
     }
 
+    /**
+     * Convert a script result to its source form, as the toSource() method
+     * of the value does. Plain objects and arrays are written by Literals.
+     * @param cx    The current Context
+     * @param scope The scope the value was created in
+     * @param value The script result
+     * @return source of the value
+     */
+    public static String toSource (Context cx, Scriptable scope, Object value) {
+        String source = Literals.write(value);
+        if (source != null) return source;
+        Scriptable obj = ScriptRuntime.toObject(cx, scope, value);
+        return Context.toString(ScriptableObject.callMethod(
+            cx, obj, "toSource", ScriptRuntime.emptyArgs
+        ));
+    }
+
     /**
      * Construct a standard error message as JSON
      * @param err The error code
@@ -150,6 +383,20 @@ public class Engine {
      * @return JSON string of error
      */
     public static String error (int err, String msg) {
-        return "({ error : "+ err +", msg: \""+ msg +"\" })";
+        if (msg != null) msg = msg.replace("\\", "\\\\").replace("\"", "\\\"");
+        return ERROR_PREFIX + err +", msg: \""+ msg +"\" })";
+    }
+
+    private static String invalidArgv () {
+        return error(Batch.BAD_REQUEST, "Invalid arguments: not JSON");
+    }
+
+    /**
+     * Check whether a result is a standard error message, see error().
+     * @param result    The result of a script execution
+     * @return true if the result is an error message
+     */
+    public static boolean isError (String result) {
+        return result == null || result.startsWith(ERROR_PREFIX);
     }
 }
@@ -0,0 +1,118 @@
+package tnic.jsvm;
+
+import tnic.config.Env;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.mozilla.javascript.Context;
+
+/**
+ * Enforces the execution budget (Env.EXECUTION_INSTRUCTION_LIMIT and
+ * Env.EXECUTION_TIME_LIMIT) of script executions and records how much of it
+ * each app uses.
+ */
+public class Governor {
+    private static final ConcurrentMap<String, Usage> usage =
+        new ConcurrentHashMap<String, Usage>();
+
+    /**
+     * Accumulated budget usage of one app.
+     */
+    public static class Usage {
+        private final AtomicLong executions      = new AtomicLong();
+        private final AtomicLong instructions    = new AtomicLong();
+        private final AtomicLong maxInstructions = new AtomicLong();
+        private final AtomicLong millis          = new AtomicLong();
+        private final AtomicLong exceeded        = new AtomicLong();
+
+        void record (Budget budget, boolean overBudget) {
+            long count = budget.getInstructions();
+            executions.incrementAndGet();
+            instructions.addAndGet(count);
+            millis.addAndGet(budget.getElapsed());
+            if (overBudget) exceeded.incrementAndGet();
+
+            long max;
+            while ((max = maxInstructions.get()) < count) {
+                if (maxInstructions.compareAndSet(max, count)) break;
+            }
+        }
+
+        public long getExecutions ()      { return executions.get(); }
+        public long getInstructions ()    { return instructions.get(); }
+        public long getMaxInstructions () { return maxInstructions.get(); }
+        public long getMillis ()          { return millis.get(); }
+        public long getExceeded ()        { return exceeded.get(); }
+    }
+
+    /**
+     * Start a budget for an execution on the given Context.
+     * @param cx    A Context made by TnicContextFactory
+     * @param app   The path of the app, or null if it has none
+     * @return the new budget
+     */
+    public static Budget begin (Context cx, String app) {
+        TnicContextFactory.TnicContext tcx = (TnicContextFactory.TnicContext) cx;
+        Budget budget = new Budget(
+            app,
+            Env.EXECUTION_INSTRUCTION_LIMIT,
+            Env.EXECUTION_TIME_LIMIT,
+            tcx.getBudget()
+        );
+        tcx.setBudget(budget);
+        return budget;
+    }
+
+    /**
+     * End the budget of an execution and record its usage.
+     * @param cx            The Context passed to begin()
+     * @param budget        The budget returned by begin()
+     * @param overBudget    Whether the execution was terminated
+     */
+    public static void end (Context cx, Budget budget, boolean overBudget) {
+        ((TnicContextFactory.TnicContext) cx).setBudget(budget.getPrevious());
+        if (budget.getApp() == null) return;
+
+        Usage u = usage.get(budget.getApp());
+        if (u == null) {
+            Usage created = new Usage();
+            u = usage.putIfAbsent(budget.getApp(), created);
+            if (u == null) u = created;
+        }
+        u.record(budget, overBudget);
+    }
+
+    /**
+     * Get the recorded usage of an app.
+     * @param app   The path of the app
+     * @return Usage, or null if the app has not run
+     */
+    public static Usage getUsage (String app) {
+        return usage.get(app);
+    }
+
+    /**
+     * Construct the recorded usage of all apps as JSON
+     * @return JSON string of the usage, keyed by app path
+     */
+    public static String stats () {
+        StringBuilder buf = new StringBuilder("({");
+        String sep = " ";
+        for (Map.Entry<String, Usage> e : usage.entrySet()) {
+            Usage u = e.getValue();
+            buf.append(sep).append('"').append(e.getKey().replace("\"", "\\\""))
+               .append("\": {")
+               .append(" executions: ").append(u.getExecutions())
+               .append(", instructions: ").append(u.getInstructions())
+               .append(", maxInstructions: ").append(u.getMaxInstructions())
+               .append(", millis: ").append(u.getMillis())
+               .append(", exceeded: ").append(u.getExceeded())
+               .append(" }");
+            sep = ", ";
+        }
+        return buf.append(" })").toString();
+    }
+}
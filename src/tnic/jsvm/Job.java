@@ -0,0 +1,87 @@
+package tnic.jsvm;
+
+/**
+ * An asynchronous execution of an app, see Jobs.
+ */
+public class Job {
+    public static final String PENDING = "pending";
+    public static final String RUNNING = "running";
+    public static final String DONE    = "done";
+
+    private final String id;
+    private final String app;
+    private final String argv;
+    private volatile String status = PENDING;
+    private volatile String result = null;
+
+    public Job (String id, String app, String argv) {
+        this.id   = id;
+        this.app  = app;
+        this.argv = argv;
+    }
+
+    /**
+     * Run the app and store its result, or the error it ended with. The job
+     * is completed even when the app ends with an Error, so its result is
+     * always shared.
+     */
+    void run () {
+        start();
+        String result = null;
+        try {
+            result = new App(this.app).run(this.argv);
+        }
+        catch (TnicExecutableException ex) {
+            result = ex.toString();
+        }
+        finally {
+            complete((result != null) ? result : Engine.error(4, "An error occurred."));
+        }
+    }
+
+    /**
+     * Mark this job as running.
+     */
+    void start () {
+        this.status = RUNNING;
+    }
+
+    /**
+     * Store the result of this job.
+     * @param result    The result of the app
+     */
+    void complete (String result) {
+        this.result = result;
+        this.status = DONE;
+    }
+
+    public String getId () {
+        return this.id;
+    }
+
+    public String getApp () {
+        return this.app;
+    }
+
+    public String getArgv () {
+        return this.argv;
+    }
+
+    public String getStatus () {
+        return this.status;
+    }
+
+    public String getResult () {
+        return this.result;
+    }
+
+    /**
+     * Construct the state of this job as JSON
+     * @return JSON string of the job
+     */
+    public String toString () {
+        String s = "({ job: \""+ this.id +"\", status: \""+ this.status +"\"";
+        if (DONE.equals(this.status)) s += ", result: "+ this.result;
+        return s +" })";
+    }
+}
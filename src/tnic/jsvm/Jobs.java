@@ -0,0 +1,102 @@
+package tnic.jsvm;
+
+import tnic.cache.AppEngineMemcache;
+import tnic.config.Env;
+
+import java.util.UUID;
+
+import com.google.appengine.api.taskqueue.Queue;
+import com.google.appengine.api.taskqueue.QueueFactory;
+import com.google.appengine.api.taskqueue.TaskOptions.Method;
+import static com.google.appengine.api.taskqueue.TaskOptions.Builder.*;
+
+/**
+ * Runs apps asynchronously. Each submitted app becomes a Job with an id that
+ * the client polls, or long-polls, for the result.
+ *
+ * Requests on App Engine cannot start threads, so jobs are enqueued on the
+ * Env.JSVM_THREAD_POOL Task Queue and run by whichever instance takes the
+ * task. The status of a job and then its result are shared through
+ * memcache, so any instance answers polls; an id that was never submitted
+ * is unknown.
+ */
+public class Jobs {
+    private static final String STATUS_PREFIX = "tnic-job-status:";
+    private static final String RESULT_PREFIX = "tnic-job:";
+
+    /**
+     * Submit an app for asynchronous execution.
+     * @param app   The path of the app
+     * @param argv  The app arguments as a javascript source string
+     * @return the Job, or null if it could not be enqueued
+     */
+    public static Job submit (String app, String argv) {
+        Job job = new Job(UUID.randomUUID().toString(), app, argv);
+        AppEngineMemcache.put(STATUS_PREFIX + job.getId(), Job.PENDING);
+        try {
+            enqueue(job);
+        }
+        catch (RuntimeException e) {
+            Env.log.severe (e.toString ());
+            AppEngineMemcache.remove(STATUS_PREFIX + job.getId());
+            return null;
+        }
+        return job;
+    }
+
+    /**
+     * Run a job enqueued by submit and share its result.
+     * @param id    The job id
+     * @param app   The path of the app
+     * @param argv  The app arguments as a javascript source string
+     */
+    public static void runQueued (String id, String app, String argv) {
+        AppEngineMemcache.put(STATUS_PREFIX + id, Job.RUNNING);
+        Job job = new Job(id, app, argv);
+        job.run();
+        AppEngineMemcache.put(RESULT_PREFIX + id, job.getResult());
+        AppEngineMemcache.put(STATUS_PREFIX + id, Job.DONE);
+    }
+
+    /**
+     * Find a job, waiting up to the given time for it to finish.
+     * @param id        The job id
+     * @param millis    Maximum time to wait, capped at Env.JOB_MAX_WAIT
+     * @return the Job, or null if the id is unknown
+     */
+    public static Job poll (String id, long millis) throws InterruptedException {
+        long deadline = System.currentTimeMillis()
+            + Math.min(millis, Env.JOB_MAX_WAIT);
+        while (true) {
+            /* the status first: a job done in between then has its result */
+            String status = (String) AppEngineMemcache.get(STATUS_PREFIX + id);
+            String result = (String) AppEngineMemcache.get(RESULT_PREFIX + id);
+            Job job = new Job(id, null, null);
+            if (result != null) {
+                job.complete(result);
+                return job;
+            }
+            if (status == null) return null;
+            if (Job.DONE.equals(status)) {
+                /* the result has been evicted from memcache */
+                job.complete(Engine.error(4, "The job result is no longer available"));
+                return job;
+            }
+            if (Job.RUNNING.equals(status)) job.start();
+
+            long left = deadline - System.currentTimeMillis();
+            if (left <= 0) return job;
+            Thread.sleep(Math.min(left, Env.JOB_POLL_INTERVAL));
+        }
+    }
+
+    private static void enqueue (Job job) {
+        Queue q = QueueFactory.getQueue(Env.JSVM_THREAD_POOL);
+        q.add(withUrl("/run")
+            .param("jobrun", job.getId())
+            .param("app", job.getApp())
+            .param("arg", job.getArgv() == null ? "" : job.getArgv())
+            .method(Method.GET)
+        );
+    }
+}
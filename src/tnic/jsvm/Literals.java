@@ -0,0 +1,466 @@
+package tnic.jsvm;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.NativeArray;
+import org.mozilla.javascript.NativeObject;
+import org.mozilla.javascript.ScriptRuntime;
+import org.mozilla.javascript.Scriptable;
+import org.mozilla.javascript.Undefined;
+
+/**
+ * Converts between javascript values and their source without the Rhino
+ * parser. parse() reads app arguments written as JSON, or as the object
+ * literals toSource() produces, straight into Rhino objects in one pass.
+ * write() produces the toSource() form of plain objects and arrays of
+ * strings, numbers, booleans and null in one StringBuilder. Anything else
+ * is left to Rhino: parse() returns Scriptable.NOT_FOUND and write() null.
+ */
+public class Literals {
+    /* nesting accepted by parse() before it gives up */
+    private static final int MAX_DEPTH = 512;
+
+    /* keys toSource() may quote although they look like identifiers */
+    private static final Set<String> RESERVED = new HashSet<String>(Arrays.asList(
+        "abstract", "boolean", "break", "byte", "case", "catch", "char",
+        "class", "const", "continue", "debugger", "default", "delete", "do",
+        "double", "else", "enum", "export", "extends", "false", "final",
+        "finally", "float", "for", "function", "goto", "if", "implements",
+        "import", "in", "instanceof", "int", "interface", "let", "long",
+        "native", "new", "null", "package", "private", "protected", "public",
+        "return", "short", "static", "super", "switch", "synchronized", "this",
+        "throw", "throws", "transient", "true", "try", "typeof", "var", "void",
+        "volatile", "while", "with", "yield"
+    ));
+
+    /**
+     * Thrown by the Parser on input it does not handle. Carries no stack
+     * trace, as it is an expected outcome for javascript arguments.
+     */
+    private static class Unparsable extends Exception {
+        public Throwable fillInStackTrace () {
+            return this;
+        }
+    }
+
+    private static final Unparsable UNPARSABLE = new Unparsable();
+
+    /**
+     * Parse the source of a value.
+     * @param cx    The current Context
+     * @param scope The scope to create objects in
+     * @param text  JSON, or javascript object, array and primitive literals
+     *  with identifier keys and single quoted strings
+     * @return the value, undefined for blank text, or Scriptable.NOT_FOUND if
+     *  the text is not such a literal
+     */
+    public static Object parse (Context cx, Scriptable scope, String text) {
+        Parser parser = new Parser(cx, scope, text);
+        try {
+            parser.skip();
+            if (parser.pos == text.length()) return Undefined.instance;
+            Object value = parser.value(0);
+            parser.skip();
+            if (parser.pos != text.length()) return Scriptable.NOT_FOUND;
+            return value;
+        }
+        catch (Unparsable e) {
+            return Scriptable.NOT_FOUND;
+        }
+    }
+
+    private static class Parser {
+        final Context cx;
+        final Scriptable scope;
+        final String text;
+        int pos = 0;
+
+        Parser (Context cx, Scriptable scope, String text) {
+            this.cx    = cx;
+            this.scope = scope;
+            this.text  = text;
+        }
+
+        Object value (int depth) throws Unparsable {
+            if (depth > MAX_DEPTH || pos >= text.length()) throw UNPARSABLE;
+            char c = text.charAt(pos);
+            switch (c) {
+                case '{':
+                    return object(depth);
+                case '[':
+                    return array(depth);
+                case '"':
+                case '\'':
+                    return string(c);
+                case '(':
+                    pos++;
+                    skip();
+                    Object value = value(depth + 1);
+                    skip();
+                    expect(')');
+                    return value;
+            }
+            if (c == '-' || (c >= '0' && c <= '9')) return number();
+
+            String word = identifier();
+            if (word.equals("true"))      return Boolean.TRUE;
+            if (word.equals("false"))     return Boolean.FALSE;
+            if (word.equals("null"))      return null;
+            if (word.equals("undefined")) return Undefined.instance;
+            throw UNPARSABLE;
+        }
+
+        Scriptable object (int depth) throws Unparsable {
+            Scriptable obj = cx.newObject(scope);
+            pos++;
+            skip();
+            if (peek() == '}') {
+                pos++;
+                return obj;
+            }
+            while (true) {
+                char c = peek();
+                String key;
+                if (c == '"' || c == '\'') {
+                    key = string(c);
+                }
+                else if (c >= '0' && c <= '9') {
+                    int start = pos;
+                    digits();
+                    key = text.substring(start, pos);
+                }
+                else {
+                    key = identifier();
+                }
+                /* a prototype is not data */
+                if (key.equals("__proto__") || key.equals("__parent__")) {
+                    throw UNPARSABLE;
+                }
+                skip();
+                expect(':');
+                skip();
+                Object value = value(depth + 1);
+
+                long index = index(key);
+                if (index >= 0) obj.put((int) index, obj, value);
+                else obj.put(key, obj, value);
+
+                skip();
+                if (peek() == ',') {
+                    pos++;
+                    skip();
+                    continue;
+                }
+                expect('}');
+                return obj;
+            }
+        }
+
+        Scriptable array (int depth) throws Unparsable {
+            List<Object> elements = new ArrayList<Object>();
+            pos++;
+            skip();
+            if (peek() == ']') {
+                pos++;
+                return cx.newArray(scope, 0);
+            }
+            while (true) {
+                elements.add(value(depth + 1));
+                skip();
+                if (peek() == ',') {
+                    pos++;
+                    skip();
+                    continue;
+                }
+                expect(']');
+                return cx.newArray(scope, elements.toArray());
+            }
+        }
+
+        String string (char quote) throws Unparsable {
+            pos++;
+            StringBuilder buf = null;
+            int start = pos;
+            while (pos < text.length()) {
+                char c = text.charAt(pos);
+                if (c == quote) {
+                    String s = text.substring(start, pos);
+                    pos++;
+                    return (buf == null) ? s : buf.append(s).toString();
+                }
+                if (c == '\n' || c == '\r') throw UNPARSABLE;
+                if (c != '\\') {
+                    pos++;
+                    continue;
+                }
+                if (buf == null) buf = new StringBuilder();
+                buf.append(text, start, pos);
+                pos++;
+                if (pos >= text.length()) throw UNPARSABLE;
+                c = text.charAt(pos++);
+                switch (c) {
+                    case 'b': buf.append('\b'); break;
+                    case 'f': buf.append('\f'); break;
+                    case 'n': buf.append('\n'); break;
+                    case 'r': buf.append('\r'); break;
+                    case 't': buf.append('\t'); break;
+                    case 'v': buf.append('\u000b'); break;
+                    case 'x': buf.append((char) hex(2)); break;
+                    case 'u': buf.append((char) hex(4)); break;
+                    case '"':
+                    case '\'':
+                    case '\\':
+                    case '/':
+                        buf.append(c);
+                        break;
+                    default:
+                        throw UNPARSABLE;
+                }
+                start = pos;
+            }
+            throw UNPARSABLE;
+        }
+
+        Double number () throws Unparsable {
+            int start = pos;
+            if (peek() == '-') pos++;
+            /* a leading zero makes an octal literal */
+            if (peek() == '0' && pos + 1 < text.length()
+                    && Character.isDigit(text.charAt(pos + 1))) {
+                throw UNPARSABLE;
+            }
+            digits();
+            if (peek() == '.') {
+                pos++;
+                digits();
+            }
+            if (peek() == 'e' || peek() == 'E') {
+                pos++;
+                if (peek() == '+' || peek() == '-') pos++;
+                digits();
+            }
+            try {
+                return Double.valueOf(text.substring(start, pos));
+            }
+            catch (NumberFormatException e) {
+                throw UNPARSABLE;
+            }
+        }
+
+        void digits () throws Unparsable {
+            int start = pos;
+            while (pos < text.length() && text.charAt(pos) >= '0'
+                    && text.charAt(pos) <= '9') {
+                pos++;
+            }
+            if (pos == start) throw UNPARSABLE;
+        }
+
+        String identifier () throws Unparsable {
+            int start = pos;
+            if (pos < text.length()
+                    && Character.isJavaIdentifierStart(text.charAt(pos))) {
+                pos++;
+                while (pos < text.length()
+                        && Character.isJavaIdentifierPart(text.charAt(pos))) {
+                    pos++;
+                }
+            }
+            if (pos == start) throw UNPARSABLE;
+            return text.substring(start, pos);
+        }
+
+        int hex (int digits) throws Unparsable {
+            if (pos + digits > text.length()) throw UNPARSABLE;
+            int value = 0;
+            for (int i = 0; i < digits; i++) {
+                int d = Character.digit(text.charAt(pos++), 16);
+                if (d < 0) throw UNPARSABLE;
+                value = (value << 4) | d;
+            }
+            return value;
+        }
+
+        char peek () {
+            return (pos < text.length()) ? text.charAt(pos) : 0;
+        }
+
+        void expect (char c) throws Unparsable {
+            if (peek() != c) throw UNPARSABLE;
+            pos++;
+        }
+
+        void skip () {
+            while (pos < text.length() && Character.isWhitespace(text.charAt(pos))) {
+                pos++;
+            }
+        }
+    }
+
+    /**
+     * Write the source of a value as its toSource() method does.
+     * @param value The value
+     * @return source of the value, or null if it is not a plain object or
+     *  array of strings, numbers, booleans, null and other plain objects and
+     *  arrays, or refers to itself
+     */
+    public static String write (Object value) {
+        if (!plain(value)) return null;
+        StringBuilder buf = new StringBuilder(128);
+        Map<Object, Object> seen = new IdentityHashMap<Object, Object>();
+        if (value instanceof NativeArray) {
+            return array(buf, (NativeArray) value, seen) ? buf.toString() : null;
+        }
+        buf.append('(');
+        if (!object(buf, (Scriptable) value, seen)) return null;
+        return buf.append(')').toString();
+    }
+
+    private static boolean plain (Object value) {
+        if (value == null) return false;
+        Class type = value.getClass();
+        if (type != NativeObject.class && type != NativeArray.class) return false;
+        /* an own toSource replaces the standard form */
+        return !((Scriptable) value).has("toSource", (Scriptable) value);
+    }
+
+    private static boolean object (StringBuilder buf, Scriptable obj,
+            Map<Object, Object> seen) {
+        if (seen.put(obj, obj) != null) return false;
+        buf.append('{');
+        boolean first = true;
+        for (Object id : obj.getIds()) {
+            Object value;
+            if (id instanceof Integer) {
+                value = obj.get(((Integer) id).intValue(), obj);
+                if (value == Scriptable.NOT_FOUND) continue;
+                if (!first) buf.append(", ");
+                buf.append(id);
+            }
+            else {
+                String key = (String) id;
+                value = obj.get(key, obj);
+                if (value == Scriptable.NOT_FOUND) continue;
+                if (!first) buf.append(", ");
+                if (!key(buf, key)) return false;
+            }
+            first = false;
+            buf.append(':');
+            if (!value(buf, value, seen)) return false;
+        }
+        buf.append('}');
+        seen.remove(obj);
+        return true;
+    }
+
+    private static boolean array (StringBuilder buf, NativeArray array,
+            Map<Object, Object> seen) {
+        if (seen.put(array, array) != null) return false;
+        long length = array.getLength();
+        if (length > Integer.MAX_VALUE) return false;
+        boolean first = true;
+        boolean last = false;
+        buf.append('[');
+        for (int i = 0; i < length; i++) {
+            /* holes keep their separators, as elisions */
+            if (!first) buf.append(", ");
+            first = false;
+            Object value = array.get(i, array);
+            if (value == null || value == Undefined.instance
+                    || value == Scriptable.NOT_FOUND) {
+                last = false;
+                continue;
+            }
+            last = true;
+            if (!value(buf, value, seen)) return false;
+        }
+        buf.append((!last && length > 0) ? ", ]" : "]");
+        seen.remove(array);
+        return true;
+    }
+
+    private static boolean value (StringBuilder buf, Object value,
+            Map<Object, Object> seen) {
+        if (value == null) {
+            buf.append("null");
+        }
+        else if (value == Undefined.instance) {
+            buf.append("undefined");
+        }
+        else if (value instanceof String) {
+            buf.append('"').append(ScriptRuntime.escapeString((String) value))
+               .append('"');
+        }
+        else if (value instanceof Number) {
+            double d = ((Number) value).doubleValue();
+            if (d == 0 && 1 / d < 0) buf.append("-0");
+            else buf.append(ScriptRuntime.toString(d));
+        }
+        else if (value instanceof Boolean) {
+            buf.append(value.toString());
+        }
+        else if (!plain(value)) {
+            return false;
+        }
+        else if (value instanceof NativeArray) {
+            return array(buf, (NativeArray) value, seen);
+        }
+        else {
+            return object(buf, (Scriptable) value, seen);
+        }
+        return true;
+    }
+
+    private static boolean key (StringBuilder buf, String key) {
+        if (simple(key)) {
+            buf.append(key);
+            return true;
+        }
+        /* left to Rhino to tell keywords and other identifiers apart */
+        if (identifier(key)) return false;
+        buf.append('\'').append(ScriptRuntime.escapeString(key, '\'')).append('\'');
+        return true;
+    }
+
+    /* an ASCII identifier toSource() certainly writes without quotes */
+    private static boolean simple (String key) {
+        if (key.length() == 0 || RESERVED.contains(key)) return false;
+        for (int i = 0; i < key.length(); i++) {
+            char c = key.charAt(i);
+            boolean letter = (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z')
+                || c == '_' || c == '$';
+            if (!letter && !(i > 0 && c >= '0' && c <= '9')) return false;
+        }
+        return true;
+    }
+
+    private static boolean identifier (String key) {
+        if (key.length() == 0 || !Character.isJavaIdentifierStart(key.charAt(0))) {
+            return false;
+        }
+        for (int i = 1; i < key.length(); i++) {
+            if (!Character.isJavaIdentifierPart(key.charAt(i))) return false;
+        }
+        return true;
+    }
+
+    /* the array index a key denotes, or -1 */
+    private static long index (String key) {
+        int n = key.length();
+        if (n == 0 || n > 10 || (n > 1 && key.charAt(0) == '0')) return -1;
+        long index = 0;
+        for (int i = 0; i < n; i++) {
+            char c = key.charAt(i);
+            if (c < '0' || c > '9') return -1;
+            index = index * 10 + (c - '0');
+        }
+        return (index < Integer.MAX_VALUE) ? index : -1;
+    }
+}
@@ -0,0 +1,325 @@
+package tnic.jsvm;
+
+import tnic.config.Env;
+import tnic.fs.TnicFileSystem;
+import tnic.util.MD5;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.mozilla.javascript.BaseFunction;
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.Function;
+import org.mozilla.javascript.ScriptRuntime;
+import org.mozilla.javascript.Scriptable;
+import org.mozilla.javascript.ScriptableObject;
+
+/**
+ * Library modules shared by tnic apps. Apps and modules load a module with
+ *
+ *   var lib = require("lib");
+ *
+ * which returns the exports of the module source in the tnic file system.
+ * Bare names are looked up below Env.MODULE_PATH, names starting with '/'
+ * from the root, and names starting with './' or '../' relative to the
+ * requiring module. The '.js' extension is optional. A module sees 'exports',
+ * 'module' and 'require' as in CommonJS and may replace module.exports.
+ *
+ * A module is compiled and run once per source: its exports are kept with
+ * the MD5 sum of the source and reused by every execution until the sum
+ * changes. Exports are shared between concurrent executions, so they are
+ * sealed, along with every object and function prototype reachable from
+ * them, and so is the top-level scope of the module. Variables of the module
+ * itself are shared as well and must not hold per-request state. Concurrent
+ * requires of a module load it once; circular requires are an error.
+ *
+ * Modules are shared within an instance only; the sources themselves are
+ * cached through TnicFileSystem.
+ */
+public class Modules {
+    private static final String EXTENSION = ".js";
+    private static final String WRAPPER_PREFIX =
+        "(function (exports, module, require) {";
+    private static final String WRAPPER_SUFFIX = "\n})";
+
+    private static final AtomicLong hits   = new AtomicLong();
+    private static final AtomicLong misses = new AtomicLong();
+
+    private static final ConcurrentHashMap<String, Module> modules =
+        new ConcurrentHashMap<String, Module>();
+
+    private static final ConcurrentHashMap<String, FutureTask<Module>> loading =
+        new ConcurrentHashMap<String, FutureTask<Module>>();
+
+    /* the modules the current thread is loading, to detect cycles */
+    private static final ThreadLocal<Set<String>> requiring =
+        new ThreadLocal<Set<String>>() {
+            protected Set<String> initialValue () {
+                return new HashSet<String>();
+            }
+        };
+
+    /* how many times the current thread has called require */
+    private static final ThreadLocal<int[]> requires =
+        new ThreadLocal<int[]>() {
+            protected int[] initialValue () {
+                return new int[1];
+            }
+        };
+
+    /**
+     * A loaded module and the MD5 sum of the source it was loaded from.
+     */
+    private static class Module {
+        final String hash;
+        final Object exports;
+
+        Module (String hash, Object exports) {
+            this.hash    = hash;
+            this.exports = exports;
+        }
+    }
+
+    /**
+     * require() bound to the directory names are resolved against.
+     */
+    private static class Require extends BaseFunction {
+        private final String base;
+
+        Require (String base) {
+            this.base = base;
+        }
+
+        public String getFunctionName () {
+            return "require";
+        }
+
+        public Object call (Context cx, Scriptable scope, Scriptable thisObj,
+                Object[] args) {
+            if (args.length == 0) {
+                throw Context.reportRuntimeError("require: missing module name");
+            }
+            return require(cx, resolve(this.base, Context.toString(args[0])));
+        }
+    }
+
+    /**
+     * Define the top-level require(), which resolves names starting with
+     * './' from the root, in a scope.
+     * @param scope The top-level scope, not sealed yet
+     */
+    public static void defineRequire (ScriptableObject scope) {
+        BaseFunction f = new Require("/");
+        ScriptRuntime.setFunctionProtoAndParent(f, scope);
+        scope.defineProperty("require", f, ScriptableObject.DONTENUM);
+    }
+
+    /**
+     * Get the exports of a module, loading it if its source is new or has
+     * changed.
+     * @param cx    The current Context
+     * @param path  The resolved path of the module
+     * @return the exports of the module
+     */
+    public static Object require (Context cx, String path) {
+        requires.get()[0]++;
+        String hash;
+        try {
+            hash = TnicFileSystem.getETag(path);
+        }
+        catch (IOException e) {
+            throw Context.reportRuntimeError("Module not found: "+ path);
+        }
+        Module module = modules.get(path);
+        if (module != null && module.hash.equals(hash)) {
+            hits.incrementAndGet();
+            return module.exports;
+        }
+        misses.incrementAndGet();
+        return load(cx, path, hash).exports;
+    }
+
+    /**
+     * Count the requires made by the current thread, so a caller can tell
+     * whether a run it made depends on modules.
+     * @return number of require calls so far
+     */
+    public static int requires () {
+        return requires.get()[0];
+    }
+
+    /**
+     * Drop every loaded module.
+     */
+    public static void clear () {
+        modules.clear();
+    }
+
+    public static long hits () {
+        return hits.get();
+    }
+
+    public static long misses () {
+        return misses.get();
+    }
+
+    public static int size () {
+        return modules.size();
+    }
+
+    /**
+     * Construct the module counters as JSON
+     * @return JSON string of the counters
+     */
+    public static String stats () {
+        return "({ size: "+ size() +", hits: "+ hits() +", misses: "+ misses()
+            +", loading: "+ loading.size() +" })";
+    }
+
+    /**
+     * Load a module once however many threads ask for it.
+     */
+    private static Module load (final Context cx, final String path,
+            String hash) {
+        Set<String> stack = requiring.get();
+        if (stack.contains(path)) {
+            throw Context.reportRuntimeError("Circular require of "+ path);
+        }
+
+        String key = path +"#"+ hash;
+        FutureTask<Module> task = new FutureTask<Module>(new Callable<Module>() {
+            public Module call () throws IOException {
+                return evaluate(cx, path);
+            }
+        });
+        FutureTask<Module> first = loading.putIfAbsent(key, task);
+        /* a thread that is loading a module itself does not wait, the other
+         * thread may be waiting for it */
+        if (first != null && stack.isEmpty()) return result(first);
+
+        stack.add(path);
+        try {
+            task.run();
+            Module module = result(task);
+            modules.put(path, module);
+            return module;
+        }
+        finally {
+            stack.remove(path);
+            if (first == null) loading.remove(key, task);
+        }
+    }
+
+    /**
+     * Compile and run a module in a scope of its own. The scope outlives the
+     * request and is shared by every thread calling into the module, so it
+     * is always a RequestScope over the sealed shared scope, and is sealed
+     * once the module has run: imports and new globals made later by its
+     * functions fail instead of changing the scope under other threads.
+     */
+    private static Module evaluate (Context cx, String path)
+            throws IOException {
+        String src = TnicFileSystem.getAsciiFile(path);
+        if (src == null) {
+            throw Context.reportRuntimeError("Module not found: "+ path);
+        }
+        RequestScope scope = new RequestScope(Engine.sharedScope());
+        Function wrapper = (Function) cx.evaluateString(
+            scope, WRAPPER_PREFIX + src + WRAPPER_SUFFIX, path, 1, null);
+
+        Scriptable exports = cx.newObject(scope);
+        Scriptable module = cx.newObject(scope);
+        module.put("id", module, path);
+        module.put("exports", module, exports);
+        BaseFunction require = new Require(path.substring(0, path.lastIndexOf('/') + 1));
+        ScriptRuntime.setFunctionProtoAndParent(require, scope);
+
+        wrapper.call(cx, scope, scope, new Object[] { exports, module, require });
+        Object result = module.get("exports", module);
+        seal(result, new IdentityHashMap<Object, Object>());
+        scope.sealObject();
+        return new Module(MD5.sum(src), result);
+    }
+
+    /**
+     * Seal an object and every object reachable from its properties.
+     */
+    private static void seal (Object value, Map<Object, Object> seen) {
+        if (!(value instanceof ScriptableObject) || seen.containsKey(value)) {
+            return;
+        }
+        ScriptableObject obj = (ScriptableObject) value;
+        if (obj.isSealed()) return;
+        seen.put(obj, obj);
+        /* function prototypes are created on first use, create them now */
+        if (obj instanceof BaseFunction) {
+            seal(obj.get("prototype", obj), seen);
+        }
+        for (Object id : obj.getIds()) {
+            seal((id instanceof Integer)
+                ? obj.get(((Integer) id).intValue(), obj)
+                : obj.get((String) id, obj), seen);
+        }
+        obj.sealObject();
+    }
+
+    private static Module result (FutureTask<Module> task) {
+        try {
+            return task.get();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw Context.reportRuntimeError("Interrupted loading a module");
+        }
+        catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            if (cause instanceof Error) throw (Error) cause;
+            throw Context.reportRuntimeError(cause.getMessage());
+        }
+    }
+
+    /**
+     * Resolve a module name against the directory of the requiring module.
+     * @param base  The directory, ending with '/'
+     * @param name  The module name
+     * @return the path of the module source
+     */
+    static String resolve (String base, String name) {
+        String path;
+        if (name.startsWith("/")) {
+            path = name;
+        }
+        else if (name.startsWith("./") || name.startsWith("../")) {
+            path = base + name;
+        }
+        else {
+            path = Env.MODULE_PATH + name;
+        }
+        if (!path.endsWith(EXTENSION)) path += EXTENSION;
+
+        StringBuilder resolved = new StringBuilder();
+        for (String segment : path.split("/")) {
+            if (segment.length() == 0 || segment.equals(".")) continue;
+            if (segment.equals("..")) {
+                int last = resolved.lastIndexOf("/");
+                if (last < 0) {
+                    throw Context.reportRuntimeError(
+                        "Module outside of the root: "+ name);
+                }
+                resolved.setLength(last);
+                continue;
+            }
+            resolved.append('/').append(segment);
+        }
+        return resolved.toString();
+    }
+}
@@ -0,0 +1,105 @@
+package tnic.jsvm;
+
+import tnic.config.Env;
+import tnic.util.Fingerprints;
+
+import java.io.File;
+import java.io.InputStream;
+import java.io.IOException;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * Lookup of apps compiled ahead of time by the Precompiler. The manifest maps
+ * each app path to the MD5 sum of the source it was compiled from and the name
+ * of the generated class. Malformed entries are logged and ignored.
+ */
+public class Precompiled {
+    public static final String MANIFEST = "tnic-apps.properties";
+
+    private static final Properties manifest = new Properties();
+
+    static {
+        InputStream in = Precompiled.class.getClassLoader()
+            .getResourceAsStream(MANIFEST);
+        if (in != null) {
+            try {
+                manifest.load(in);
+                in.close();
+            }
+            catch (IOException e) {
+                Env.log.severe (e.toString ());
+            }
+        }
+        /* drop entries without both a sum and a class name */
+        for (String path : manifest.stringPropertyNames()) {
+            String entry = manifest.getProperty(path);
+            int split = entry.indexOf(' ');
+            if (split <= 0 || split == entry.length() - 1) {
+                Env.log.warning ("Malformed precompiled app entry: "+ path);
+                manifest.remove(path);
+            }
+        }
+    }
+
+    /**
+     * Find the precompiled form of an app.
+     * @param path  The path of the app
+     * @param md5   The MD5 sum of the current app source
+     * @return CompiledScript instance, or null if the app was not precompiled
+     *  or its class is stale
+     */
+    public static CompiledScript lookup (String path, String md5) {
+        String entry = manifest.getProperty(normalize(path));
+        if (entry == null) return null;
+
+        int split = entry.indexOf(' ');
+        if (!md5.equals(entry.substring(0, split))) return null;
+        return Engine.load(Engine.locate(entry.substring(split + 1)));
+    }
+
+    /**
+     * Load the classes of the precompiled apps under a directory whose
+     * sources are unchanged, hashing only the sources the manifest lists, one
+     * after another. Stale apps are logged and left to be compiled on first
+     * use.
+     * @param root  The directory the app paths are relative to
+     * @return the number of apps loaded
+     */
+    public static int warm (File root) throws IOException {
+        if (manifest.isEmpty()) return 0;
+        Map<String, String> sums =
+            Fingerprints.of(root, manifest.stringPropertyNames());
+        int loaded = 0;
+        for (String path : manifest.stringPropertyNames()) {
+            String entry = manifest.getProperty(path);
+            int split = entry.indexOf(' ');
+            String md5 = sums.get(path);
+            if (md5 == null || !md5.equals(entry.substring(0, split))) {
+                Env.log.warning ("Stale precompiled app: "+ path);
+                continue;
+            }
+            if (Engine.load(Engine.locate(entry.substring(split + 1))) != null) {
+                loaded++;
+            }
+        }
+        return loaded;
+    }
+
+    /**
+     * Build a manifest entry.
+     * @param md5       The MD5 sum of the app source
+     * @param className The name of the generated class
+     * @return the manifest entry
+     */
+    public static String entry (String md5, String className) {
+        return md5 +" "+ className;
+    }
+
+    /**
+     * Normalize an app path into a manifest key.
+     */
+    public static String normalize (String path) {
+        return path.startsWith("/") ? path.substring(1) : path;
+    }
+}
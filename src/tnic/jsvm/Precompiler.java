@@ -0,0 +1,162 @@
+package tnic.jsvm;
+
+import tnic.util.MD5;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Properties;
+
+import org.apache.commons.io.IOUtils;
+
+import org.mozilla.javascript.CompilerEnvirons;
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.optimizer.ClassCompiler;
+
+/**
+ * Compiles tnic apps into Java classes ahead of time and writes the manifest
+ * read by Precompiled. Run by the 'precompile' ant target:
+ *
+ *   java tnic.jsvm.Precompiler <root dir> <apps dir> <output dir>
+ *
+ * App paths in the manifest are relative to the root dir, which is the root
+ * of the tnic file system.
+ */
+public class Precompiler {
+    public static final String PACKAGE = "tnic.apps";
+    public static int OPTIMIZATION_LEVEL = 9;
+
+    private File root;
+    private File output;
+    private ClassCompiler compiler;
+    private Properties manifest = new Properties();
+
+    public Precompiler (File root, File output) {
+        this.root   = root;
+        this.output = output;
+
+        CompilerEnvirons env = new CompilerEnvirons();
+        Context cx = Context.enter();
+        try {
+            env.initFromContext(cx);
+        }
+        finally {
+            Context.exit();
+        }
+        env.setOptimizationLevel(OPTIMIZATION_LEVEL);
+        env.setGeneratingSource(false);
+        /* let the Governor count instructions of precompiled apps too */
+        env.setGenerateObserverCount(true);
+        this.compiler = new ClassCompiler(env);
+    }
+
+    /**
+     * Compile every .js file below a directory.
+     * @param dir   The directory to compile
+     */
+    public void compileAll (File dir) throws IOException {
+        File[] files = dir.listFiles();
+        if (files == null) return;
+        for (File f : files) {
+            if (f.isDirectory()) {
+                compileAll(f);
+            }
+            else if (f.getName().endsWith(".js")) {
+                compile(f);
+            }
+        }
+    }
+
+    /**
+     * Compile one app and add it to the manifest.
+     * @param f The app source file
+     */
+    public void compile (File f) throws IOException {
+        InputStream in = new FileInputStream(f);
+        String src;
+        try {
+            src = IOUtils.toString(in, "UTF-8");
+        }
+        finally {
+            in.close();
+        }
+
+        String path      = path(f);
+        String className = className(path);
+        Object[] classes = compiler.compileToClassFiles(
+            Engine.prepare(src, false), path, 0, className
+        );
+        for (int i = 0; i < classes.length; i += 2) {
+            write((String) classes[i], (byte[]) classes[i + 1]);
+        }
+        manifest.setProperty(path, Precompiled.entry(MD5.sum(src), className));
+    }
+
+    /**
+     * Write the manifest into the output dir.
+     */
+    public void writeManifest () throws IOException {
+        OutputStream out = new FileOutputStream(
+            new File(this.output, Precompiled.MANIFEST));
+        try {
+            manifest.store(out, "tnic precompiled apps: path = md5 class");
+        }
+        finally {
+            out.close();
+        }
+    }
+
+    private void write (String className, byte[] bytes) throws IOException {
+        File f = new File(this.output, className.replace('.', '/') + ".class");
+        f.getParentFile().mkdirs();
+        OutputStream out = new FileOutputStream(f);
+        try {
+            out.write(bytes);
+        }
+        finally {
+            out.close();
+        }
+    }
+
+    private String path (File f) {
+        String rootPath = this.root.getAbsolutePath() + File.separator;
+        return Precompiled.normalize(f.getAbsolutePath()
+            .substring(rootPath.length())
+            .replace(File.separatorChar, '/'));
+    }
+
+    /**
+     * Derive a class name from an app path, e.g. apps/hello.js becomes
+     * tnic.apps.apps.hello
+     */
+    private static String className (String path) {
+        String name = path.endsWith(".js")
+            ? path.substring(0, path.length() - 3) : path;
+        StringBuilder buf = new StringBuilder(PACKAGE);
+        for (String part : name.split("/")) {
+            buf.append('.');
+            if (part.length() == 0 || !Character.isJavaIdentifierStart(part.charAt(0)))
+                buf.append('_');
+            for (int i = 0; i < part.length(); i++) {
+                char c = part.charAt(i);
+                buf.append(Character.isJavaIdentifierPart(c) ? c : '_');
+            }
+        }
+        return buf.toString();
+    }
+
+    public static void main (String [] args)
+        throws Exception {
+        if (args.length != 3) {
+            System.err.println(
+                "usage: Precompiler <root dir> <apps dir> <output dir>");
+            System.exit(1);
+        }
+        Precompiler p = new Precompiler(new File(args[0]), new File(args[2]));
+        p.compileAll(new File(args[1]));
+        p.writeManifest();
+    }
+}
@@ -0,0 +1,162 @@
+package tnic.jsvm;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.mozilla.javascript.BaseFunction;
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.NativeJavaClass;
+import org.mozilla.javascript.NativeJavaPackage;
+import org.mozilla.javascript.ScriptRuntime;
+import org.mozilla.javascript.Scriptable;
+import org.mozilla.javascript.ScriptableObject;
+import org.mozilla.javascript.Undefined;
+
+/**
+ * Top-level scope of a single script execution in shared scope mode. The
+ * sealed shared scope is its prototype, so the standard objects are inherited
+ * instead of being built for every request. Variables and Java imports made by
+ * the script stay in this object and are never seen by other executions.
+ * Modules run in a RequestScope too, which is sealed once the module has
+ * loaded; see Modules.
+ */
+public class RequestScope extends ScriptableObject {
+    private List<NativeJavaPackage> packages = null;
+
+    /**
+     * Sole constructor.
+     * @param shared    The sealed shared top-level scope
+     */
+    public RequestScope (Scriptable shared) {
+        setPrototype(shared);
+        setParentScope(null);
+    }
+
+    public String getClassName () {
+        return "global";
+    }
+
+    public boolean has (String name, Scriptable start) {
+        return super.has(name, start) || getImported(name) != NOT_FOUND;
+    }
+
+    public Object get (String name, Scriptable start) {
+        Object result = super.get(name, start);
+        if (result != NOT_FOUND) return result;
+        return getImported(name);
+    }
+
+    /**
+     * Resolving an import of the shared scope stores the class under its
+     * short name in the start object. A sealed RequestScope skips that
+     * store and resolves the class again on the next lookup.
+     */
+    public void put (String name, Scriptable start, Object value) {
+        if (isSealed() && start == this && value instanceof NativeJavaClass
+                && !super.has(name, start)
+                && name.equals(shortName((NativeJavaClass) value))) {
+            return;
+        }
+        super.put(name, start, value);
+    }
+
+    /**
+     * Replace importPackage and importClass of a shared scope with versions
+     * that import into the calling RequestScope. Must be called before the
+     * shared scope is sealed.
+     * @param shared    The shared top-level scope
+     */
+    public static void defineImportFunctions (ScriptableObject shared) {
+        defineImportFunction(shared, "importPackage", false);
+        defineImportFunction(shared, "importClass", true);
+    }
+
+    private static void defineImportFunction (ScriptableObject shared,
+            String name, boolean classes) {
+        BaseFunction f = new Importer(name, classes);
+        ScriptRuntime.setFunctionProtoAndParent(f, shared);
+        shared.defineProperty(name, f, DONTENUM);
+    }
+
+    private void importPackage (NativeJavaPackage pkg) {
+        if (packages == null) packages = new ArrayList<NativeJavaPackage>();
+        if (!packages.contains(pkg)) packages.add(pkg);
+    }
+
+    private void importClass (NativeJavaClass cl) {
+        put(shortName(cl), this, cl);
+    }
+
+    private static String shortName (NativeJavaClass cl) {
+        String name = cl.getClassObject().getName();
+        return name.substring(name.lastIndexOf('.') + 1);
+    }
+
+    /**
+     * Look up a class in the imported packages. Names defined by the shared
+     * scope always take precedence over imported classes. The shared scope is
+     * queried with this object as start since it is sealed, and resolving one
+     * of its imports stores the class in the start object.
+     */
+    private Object getImported (String name) {
+        if (packages == null || getPrototype().has(name, this))
+            return NOT_FOUND;
+
+        Object result = NOT_FOUND;
+        for (NativeJavaPackage pkg : packages) {
+            Object value = pkg.get(name, pkg);
+            if (!(value instanceof NativeJavaClass)) continue;
+            if (result != NOT_FOUND && result != value) {
+                throw Context.reportRuntimeError(
+                    "Ambiguous import \""+ name +"\"");
+            }
+            result = value;
+        }
+        return result;
+    }
+
+    /**
+     * importPackage/importClass bound to the RequestScope of the caller.
+     */
+    private static class Importer extends BaseFunction {
+        private String name;
+        private boolean classes;
+
+        Importer (String name, boolean classes) {
+            this.name    = name;
+            this.classes = classes;
+        }
+
+        public String getFunctionName () {
+            return this.name;
+        }
+
+        public Object call (Context cx, Scriptable scope, Scriptable thisObj,
+                Object[] args) {
+            Scriptable top = ScriptableObject.getTopLevelScope(scope);
+            if (!(top instanceof RequestScope)) {
+                throw Context.reportRuntimeError(
+                    this.name +" is not allowed in the shared scope");
+            }
+            RequestScope requestScope = (RequestScope) top;
+            if (requestScope.isSealed()) {
+                /* the scope of a loaded module, shared by every thread */
+                throw Context.reportRuntimeError(
+                    this.name +" is not allowed once a module has loaded");
+            }
+            for (Object arg : args) {
+                if (classes && arg instanceof NativeJavaClass) {
+                    requestScope.importClass((NativeJavaClass) arg);
+                }
+                else if (!classes && arg instanceof NativeJavaPackage) {
+                    requestScope.importPackage((NativeJavaPackage) arg);
+                }
+                else {
+                    throw Context.reportRuntimeError(
+                        this.name +": invalid argument "+ Context.toString(arg));
+                }
+            }
+            return Undefined.instance;
+        }
+    }
+}
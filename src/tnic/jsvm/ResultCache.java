@@ -0,0 +1,224 @@
+package tnic.jsvm;
+
+import tnic.cache.AppEngineMemcache;
+import tnic.config.Env;
+import tnic.util.MD5;
+
+import java.io.Serializable;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Memoizes the results of apps that are pure functions of their arguments.
+ * An app opts in by starting its source with a one-line directive, optionally
+ * giving a time to live in seconds (Env.RESULT_CACHE_TTL by default):
+ *
+ *   /* @cacheable 300 *&#47; compute($argv)
+ *
+ * Results are keyed by the MD5 sum of the app source plus the argv source, so
+ * editing an app never serves a result of its old source. The cache holds at
+ * most Env.RESULT_CACHE_SIZE results, evicting the least recently used, and
+ * with Env.RESULT_CACHE_MEMCACHE also shares results through memcache.
+ * Concurrent identical invocations run the app once and share its result.
+ * Errors are never cached, and neither are the results of runs that called
+ * require, since the key does not cover the sources of the modules.
+ */
+public class ResultCache {
+    private static final String KEY_SEPARATOR = "#";
+    private static final String CACHE_PREFIX  = "tnic-result:";
+
+    private static final Pattern DIRECTIVE =
+        Pattern.compile("^\\s*/\\*\\s*@cacheable(?:\\s+(\\d+))?\\s*\\*/");
+
+    /* most digits of a time to live a directive may give, up to about 31
+     * years; longer ones could overflow, so they fall back to the default */
+    private static final int TTL_DIGITS = 9;
+
+    private static final AtomicLong hits      = new AtomicLong();
+    private static final AtomicLong misses    = new AtomicLong();
+    private static final AtomicLong evictions = new AtomicLong();
+
+    private static final Map<String, Result> results =
+        new LinkedHashMap<String, Result>(16, 0.75f, true) {
+            protected boolean removeEldestEntry (Map.Entry<String, Result> eldest) {
+                if (size() > Env.RESULT_CACHE_SIZE) {
+                    evictions.incrementAndGet();
+                    return true;
+                }
+                return false;
+            }
+        };
+
+    private static final ConcurrentHashMap<String, FutureTask<String>> running =
+        new ConcurrentHashMap<String, FutureTask<String>>();
+
+    /**
+     * A cached result and the time it expires.
+     */
+    private static class Result implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        final String result;
+        final long expires;
+
+        Result (String result, long expires) {
+            this.result  = result;
+            this.expires = expires;
+        }
+
+        boolean isExpired () {
+            return System.currentTimeMillis() > this.expires;
+        }
+    }
+
+    /**
+     * Read the time to live an app source declares.
+     * @param src   The javascript source of the app
+     * @return time to live in milliseconds, 0 if the app is not cacheable
+     */
+    public static long ttl (String src) {
+        Matcher m = DIRECTIVE.matcher(src);
+        if (!m.lookingAt()) return 0;
+        String digits = m.group(1);
+        if (digits != null && digits.length() > TTL_DIGITS) {
+            Env.log.warning ("Ignoring out of range @cacheable time to live: "
+                + digits);
+            digits = null;
+        }
+        long seconds = (digits == null)
+            ? Env.RESULT_CACHE_TTL : Long.parseLong(digits);
+        return seconds * 1000;
+    }
+
+    /**
+     * Get the result of a cacheable app, running it on a miss.
+     * @param script    The compiled app
+     * @param argv      The app arguments as a javascript source string
+     * @param run       Runs the app
+     * @return result of app execution
+     */
+    public static String get (CompiledScript script, String argv,
+            Callable<String> run) throws TnicExecutableException {
+        String key = script.getHash() + KEY_SEPARATOR + argv;
+        String result = lookup(key);
+        if (result != null) {
+            hits.incrementAndGet();
+            return result;
+        }
+        misses.incrementAndGet();
+
+        FutureTask<String> task = new FutureTask<String>(run);
+        FutureTask<String> first = running.putIfAbsent(key, task);
+        if (first == null) {
+            try {
+                int requires = Modules.requires();
+                task.run();
+                result = result(task);
+                if (Modules.requires() == requires) {
+                    store(key, result, script.getCacheTtl());
+                }
+                return result;
+            }
+            finally {
+                running.remove(key, task);
+            }
+        }
+        return result(first);
+    }
+
+    /**
+     * Drop every cached result.
+     */
+    public static void clear () {
+        synchronized (results) {
+            results.clear();
+        }
+    }
+
+    public static long hits () {
+        return hits.get();
+    }
+
+    public static long misses () {
+        return misses.get();
+    }
+
+    public static long evictions () {
+        return evictions.get();
+    }
+
+    public static int size () {
+        synchronized (results) {
+            return results.size();
+        }
+    }
+
+    /**
+     * Construct the cache counters as JSON
+     * @return JSON string of the counters
+     */
+    public static String stats () {
+        return "({ size: "+ size() +", hits: "+ hits() +", misses: "+ misses()
+            +", evictions: "+ evictions() +", running: "+ running.size() +" })";
+    }
+
+    private static String lookup (String key) {
+        Result cached;
+        synchronized (results) {
+            cached = results.get(key);
+        }
+        if (cached == null && Env.RESULT_CACHE_MEMCACHE) {
+            cached = (Result) AppEngineMemcache.get(memcacheKey(key));
+            if (cached != null && !cached.isExpired()) {
+                synchronized (results) {
+                    results.put(key, cached);
+                }
+            }
+        }
+        if (cached == null || cached.isExpired()) return null;
+        return cached.result;
+    }
+
+    private static void store (String key, String result, long ttl) {
+        if (Engine.isError(result)) return;
+        Result cached = new Result(result, System.currentTimeMillis() + ttl);
+        synchronized (results) {
+            results.put(key, cached);
+        }
+        if (Env.RESULT_CACHE_MEMCACHE) {
+            AppEngineMemcache.put(memcacheKey(key), cached);
+        }
+    }
+
+    /* memcache keys are limited in length, argv sources are not */
+    private static String memcacheKey (String key) {
+        return CACHE_PREFIX + MD5.sum(key);
+    }
+
+    private static String result (FutureTask<String> task)
+            throws TnicExecutableException {
+        try {
+            return task.get();
+        }
+        catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new TnicExecutableException(4, "An error occurred.");
+        }
+        catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            if (cause instanceof TnicExecutableException) {
+                throw (TnicExecutableException) cause;
+            }
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            if (cause instanceof Error) throw (Error) cause;
+            throw new IllegalStateException(cause);
+        }
+    }
+}
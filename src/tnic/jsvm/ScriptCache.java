@@ -0,0 +1,134 @@
+package tnic.jsvm;
+
+import tnic.config.Env;
+import tnic.util.MD5;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Process-wide, bounded cache of CompiledScript instances. Entries are keyed
+ * by the MD5 sum of the app source, so a changed source never hits a stale
+ * entry and apps with identical sources share one compiled script. Least
+ * recently used entries are evicted once the cache holds more than
+ * Env.SCRIPT_CACHE_SIZE scripts. On a miss the precompiled class of the app
+ * is preferred, then the Bytecode another instance persisted, over compiling
+ * the source, whose Bytecode is persisted in turn. Cached scripts carry the
+ * source hash and the result cache TTL the source declares.
+ *
+ * The sum each path was last compiled from is remembered as well, so a
+ * rewritten app drops its old script at once instead of waiting to age out.
+ */
+public class ScriptCache {
+    private static final AtomicLong hits      = new AtomicLong();
+    private static final AtomicLong misses    = new AtomicLong();
+    private static final AtomicLong evictions = new AtomicLong();
+
+    private static final Map<String, CompiledScript> scripts =
+        new LinkedHashMap<String, CompiledScript>(16, 0.75f, true) {
+            protected boolean removeEldestEntry (
+                    Map.Entry<String, CompiledScript> eldest) {
+                if (size() > Env.SCRIPT_CACHE_SIZE) {
+                    evictions.incrementAndGet();
+                    return true;
+                }
+                return false;
+            }
+        };
+
+    /* the source sum each path was last compiled from, for invalidate */
+    private static final Map<String, String> paths =
+        new LinkedHashMap<String, String>(16, 0.75f, true) {
+            protected boolean removeEldestEntry (
+                    Map.Entry<String, String> eldest) {
+                return size() > Env.SCRIPT_CACHE_SIZE;
+            }
+        };
+
+    /**
+     * Retrieve the compiled form of an app, compiling and caching it on a
+     * miss.
+     * @param path  The path of the app
+     * @param src   The javascript source of the app
+     * @return CompiledScript instance
+     */
+    public static CompiledScript get (String path, String src) {
+        String md5 = MD5.sum(src);
+        CompiledScript script;
+        synchronized (scripts) {
+            script = scripts.get(md5);
+            paths.put(path, md5);
+        }
+        if (script != null) {
+            hits.incrementAndGet();
+            return script;
+        }
+        misses.incrementAndGet();
+
+        /* compile outside the lock; a concurrent miss just compiles twice */
+        script = Precompiled.lookup(path, md5);
+        if (script == null) script = Bytecode.lookup(src);
+        if (script == null) {
+            script = Engine.compile(src, md5);
+            Bytecode.store(src, script);
+        }
+        /* the class files are persisted, the cached script needs only the
+         * classes defined from them */
+        script = new CompiledScript(script.getScript(), md5,
+            ResultCache.ttl(src), null);
+        synchronized (scripts) {
+            scripts.put(md5, script);
+        }
+        return script;
+    }
+
+    /**
+     * Drop the cached script last compiled from the given path.
+     * @param path  The path of the app
+     */
+    public static void invalidate (String path) {
+        synchronized (scripts) {
+            String md5 = paths.remove(path);
+            if (md5 != null) scripts.remove(md5);
+        }
+    }
+
+    /**
+     * Drop every cached script.
+     */
+    public static void clear () {
+        synchronized (scripts) {
+            scripts.clear();
+            paths.clear();
+        }
+    }
+
+    public static long hits () {
+        return hits.get();
+    }
+
+    public static long misses () {
+        return misses.get();
+    }
+
+    public static long evictions () {
+        return evictions.get();
+    }
+
+    public static int size () {
+        synchronized (scripts) {
+            return scripts.size();
+        }
+    }
+
+    /**
+     * Construct the cache counters as JSON
+     * @return JSON string of the counters
+     */
+    public static String stats () {
+        return "({ size: "+ size() +", hits: "+ hits() +", misses: "+ misses()
+            +", evictions: "+ evictions() +", bytecodeHits: "+ Bytecode.hits()
+            +", bytecodeMisses: "+ Bytecode.misses() +" })";
+    }
+}
@@ -1,16 +1,19 @@
 package tnic.jsvm;
 
+import tnic.cache.NearCache;
 import tnic.config.Env;
+import tnic.db.AppEngineDatastore;
+import tnic.fs.FileCache;
 import tnic.fs.TnicFileSystem;
+import tnic.util.HTTPCache;
 
+import java.io.File;
 import java.io.IOException;
+import java.io.PrintWriter;
 import javax.servlet.*;
 import javax.servlet.http.*;
 
-import com.google.appengine.api.taskqueue.Queue;
-import com.google.appengine.api.taskqueue.QueueFactory;
-import com.google.appengine.api.taskqueue.TaskOptions.Method;
-import static com.google.appengine.api.taskqueue.TaskOptions.Builder.*;
+import org.apache.commons.io.IOUtils;
 
 /**
  * Execute a tnic application via HTTP.
@@ -19,7 +22,33 @@ public class Servlet extends HttpServlet {
     public void init () throws ServletException {
         Env.JSVM_THREAD_POOL = "jsvm-thread-pool"; 
         Env.SERVLET_CONTEXT = getServletContext();
+        Env.SHARED_SCOPE = "true".equals(getInitParameter("shared-scope"));
+        Env.EXECUTION_INSTRUCTION_LIMIT = longParameter("instruction-limit", 0);
+        Env.EXECUTION_TIME_LIMIT        = longParameter("time-limit", 0);
+        Env.OPTIMIZATION_LEVEL = (int) longParameter(
+            "optimization-level", Env.OPTIMIZATION_LEVEL);
+        Env.FILE_STALE_WHILE_REVALIDATE =
+            "true".equals(getInitParameter("stale-while-revalidate"));
+        if (getInitParameter("argv-eval") != null) {
+            Env.ARGV_EVAL = "true".equals(getInitParameter("argv-eval"));
+        }
+
+        /* build the shared scope now rather than on the first request */
+        if (Env.SHARED_SCOPE) Engine.sharedScope();
+
+        /* verify and load the precompiled apps now as well */
+        String root = getServletContext().getRealPath("/");
+        if ("true".equals(getInitParameter("warm-up")) && root != null) {
+            try {
+                Env.log.info ("Loaded "+ Precompiled.warm(new File(root))
+                    +" precompiled apps");
+            }
+            catch (IOException e) {
+                Env.log.severe (e.toString ());
+            }
+        }
     }
+
     public void doGet (HttpServletRequest req, HttpServletResponse res) 
             throws ServletException, IOException {
 
@@ -28,22 +57,105 @@ public class Servlet extends HttpServlet {
 
         Env.TESTING = "true".equals(req.getParameter("test")) ? true : false;
 
+        /* report compiled script cache counters */
+        if ("true".equals(req.getParameter("stats"))) {
+            res.getWriter().print(ScriptCache.stats());
+            return;
+        }
+
+        /* report result cache counters */
+        if ("true".equals(req.getParameter("results"))) {
+            res.getWriter().print(ResultCache.stats());
+            return;
+        }
+
+        /* report in-process memcache tier counters */
+        if ("true".equals(req.getParameter("nearcache"))) {
+            res.getWriter().print(NearCache.stats());
+            return;
+        }
+
+        /* report shared module counters */
+        if ("true".equals(req.getParameter("modules"))) {
+            res.getWriter().print(Modules.stats());
+            return;
+        }
+
+        /* report outgoing HTTP response cache counters */
+        if ("true".equals(req.getParameter("http"))) {
+            res.getWriter().print(HTTPCache.stats());
+            return;
+        }
+
+        /* report resolved file cache counters */
+        if ("true".equals(req.getParameter("files"))) {
+            res.getWriter().print(FileCache.stats());
+            return;
+        }
+
+        /* report datastore counters */
+        if ("true".equals(req.getParameter("datastore"))) {
+            res.getWriter().print(AppEngineDatastore.stats());
+            return;
+        }
+
+        /* report execution budget usage per app */
+        if ("true".equals(req.getParameter("usage"))) {
+            res.getWriter().print(Governor.stats());
+            return;
+        }
+
+        /* report the state of an asynchronous job, waiting for its result */
+        if (null != req.getParameter("job")) {
+            poll(req, res);
+            return;
+        }
+
         if (null == app) return;
 
-        /* check whether to spaw a new thread (task) for this app */
+        /* check whether to run this app asynchronously as a job */
         if ("true" .equals(req.getParameter("thread"))) {
-            Queue q = QueueFactory.getQueue(Env.JSVM_THREAD_POOL);
-            q.add(withUrl("/run?app="+ app).method(Method.GET));
+            Job job = Jobs.submit(app, arg);
+            if (job == null) {
+                res.sendError(503, Engine.error(7, "Job could not be queued"));
+                return;
+            }
+            res.getWriter().print(job.toString());
+            return;
+        }
+
+        /* run a job enqueued on the Task Queue */
+        if (null != req.getParameter("jobrun")) {
+            /* App Engine strips this header from external requests */
+            if (null == req.getHeader("X-AppEngine-QueueName")) {
+                res.sendError(403, Engine.error(8, "Not a task queue request"));
+                return;
+            }
+            try {
+                Jobs.runQueued(req.getParameter("jobrun"), app, arg);
+            }
+            finally {
+                TnicFileSystem.cleanup();
+                AppEngineDatastore.release();
+            }
             return;
         }
 
         try {
-            /* run app and return the result */
-            res.getWriter().print((new App(app)).run(arg));
+            /* run app and return the result, optionally streaming output */
+            PrintWriter out = res.getWriter();
+            boolean stream = "true".equals(req.getParameter("stream"));
+            out.print((new App(app)).run(arg, stream ? out : null));
         }
         catch (TnicExecutableException ex) {
             /* a known error occurred while attempting to load/execute app */
-            res.sendError(500, ex.toString());
+            if (res.isCommitted()) {
+                /* streamed output was already sent, append the error */
+                res.getWriter().print(ex.toString());
+            }
+            else {
+                res.sendError(500, ex.toString());
+            }
         }
         catch (NullPointerException ex) {
             /* an unknown error occurred */
@@ -51,6 +163,59 @@ public class Servlet extends HttpServlet {
         }
         finally {
             TnicFileSystem.cleanup();
+            AppEngineDatastore.release();
+        }
+    }
+
+    /**
+     * Run a batch of apps. The request body is a JSON array of invocations,
+     * see Batch.
+     */
+    public void doPost (HttpServletRequest req, HttpServletResponse res)
+            throws ServletException, IOException {
+
+        try {
+            res.getWriter().print(Batch.run(IOUtils.toString(req.getReader())));
+        }
+        finally {
+            TnicFileSystem.cleanup();
+            AppEngineDatastore.release();
+        }
+    }
+
+    /**
+     * Report the state of the job given by the 'job' parameter. With a 'wait'
+     * parameter the request blocks up to that many milliseconds for the job
+     * to finish.
+     */
+    private void poll (HttpServletRequest req, HttpServletResponse res)
+            throws IOException {
+        String wait = req.getParameter("wait");
+        Job job;
+        try {
+            job = Jobs.poll(
+                req.getParameter("job"),
+                (wait == null) ? 0 : Long.parseLong(wait)
+            );
+        }
+        catch (NumberFormatException ex) {
+            res.sendError(400, Engine.error(6, "Invalid wait: "+ wait));
+            return;
+        }
+        catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            res.sendError(500, Engine.error(4, "An error occurred."));
+            return;
         }
+        if (job == null) {
+            res.sendError(404, Engine.error(1, "Unknown job"));
+            return;
+        }
+        res.getWriter().print(job.toString());
+    }
+
+    private long longParameter (String name, long fallback) {
+        String value = getInitParameter(name);
+        return (value == null) ? fallback : Long.parseLong(value);
     }
 }
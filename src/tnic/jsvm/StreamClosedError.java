@@ -0,0 +1,11 @@
+package tnic.jsvm;
+
+/**
+ * Thrown into a running script when the client it streams output to has gone
+ * away. This is an Error so that the script cannot catch it and keep running.
+ */
+public class StreamClosedError extends Error {
+    public StreamClosedError (String message) {
+        super(message);
+    }
+}
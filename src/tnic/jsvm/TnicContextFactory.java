@@ -0,0 +1,86 @@
+package tnic.jsvm;
+
+import tnic.config.Env;
+
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.ContextFactory;
+import org.mozilla.javascript.WrapFactory;
+
+/**
+ * ContextFactory for all tnic script executions. Contexts made by this factory
+ * are configured once from Env (optimization level, language version and wrap
+ * factory) and report instruction counts, which the Governor charges against
+ * the budget of the running execution.
+ *
+ * Each thread keeps its Context between executions, so entering a Context
+ * does not allocate and configure a new one on every request.
+ */
+public class TnicContextFactory extends ContextFactory {
+    /* instructions executed between two budget checks */
+    public static int OBSERVER_THRESHOLD = 10000;
+
+    private static final TnicContextFactory instance = new TnicContextFactory();
+
+    private final WrapFactory wrapFactory = new WrapFactory();
+
+    private final ThreadLocal<Context> contexts = new ThreadLocal<Context>() {
+        protected Context initialValue () {
+            return makeContext();
+        }
+    };
+
+    public TnicContextFactory () {
+        wrapFactory.setJavaPrimitiveWrap(Env.JAVA_PRIMITIVE_WRAP);
+    }
+
+    /**
+     * Get the factory used by Engine.
+     * @return TnicContextFactory
+     */
+    public static TnicContextFactory getInstance () {
+        return instance;
+    }
+
+    /**
+     * A Context that carries the budget of the execution it is running.
+     */
+    public static class TnicContext extends Context {
+        private Budget budget = null;
+
+        protected TnicContext (ContextFactory factory) {
+            super(factory);
+        }
+
+        public Budget getBudget () {
+            return this.budget;
+        }
+
+        public void setBudget (Budget budget) {
+            this.budget = budget;
+        }
+    }
+
+    /**
+     * Enter the Context of the current thread, creating it on first use.
+     * Must be paired with Context.exit().
+     * @return the Context for the current thread
+     */
+    public Context enterContext () {
+        return enterContext(contexts.get());
+    }
+
+    protected Context makeContext () {
+        TnicContext cx = new TnicContext(this);
+        cx.setOptimizationLevel(Env.OPTIMIZATION_LEVEL);
+        cx.setLanguageVersion(Env.LANGUAGE_VERSION);
+        cx.setWrapFactory(wrapFactory);
+        cx.setGenerateObserverCount(true);
+        cx.setInstructionObserverThreshold(OBSERVER_THRESHOLD);
+        return cx;
+    }
+
+    protected void observeInstructionCount (Context cx, int instructionCount) {
+        Budget budget = ((TnicContext) cx).getBudget();
+        if (budget != null) budget.charge(instructionCount);
+    }
+}
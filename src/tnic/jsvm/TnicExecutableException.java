@@ -0,0 +1,31 @@
+package tnic.jsvm;
+
+/**
+ * Thrown when a known error occurs while loading or executing a tnic app.
+ * The string form is a standard error message as produced by Engine.error.
+ */
+public class TnicExecutableException extends Exception {
+    public static final int NOT_FOUND = 1;
+    public static final int COMPILE   = 2;
+    public static final int RUNTIME   = 3;
+    public static final int BUDGET    = 5;
+
+    private int err;
+
+    public TnicExecutableException (int err, String message) {
+        super(message);
+        this.err = err;
+    }
+
+    /**
+     * Get the error code of this exception.
+     * @return error code
+     */
+    public int getError () {
+        return this.err;
+    }
+
+    public String toString () {
+        return Engine.error(this.err, getMessage());
+    }
+}
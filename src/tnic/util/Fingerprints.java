@@ -0,0 +1,76 @@
+package tnic.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Hashes every file of a directory tree, or a given set of its files, for
+ * verifying or warming up sets of local files at startup. Files are hashed one
+ * after another in the calling thread, since App Engine requests, servlet init
+ * included, cannot start threads. Each file is hashed in full by
+ * MD5.sum(File, -1), memory-mapped when large, so the sums equal those of the
+ * same contents in Blobs and the ScriptCache.
+ */
+public class Fingerprints {
+    /**
+     * Hash the given files under a directory, and nothing else.
+     * @param root  The directory the paths are relative to
+     * @param paths The paths of the files, separated by '/'
+     * @return Map of the paths of the files found to their MD5 sums; paths
+     *  that are not files are left out
+     * @throws IOException if a file cannot be read
+     */
+    public static Map<String, String> of (File root, Collection<String> paths)
+            throws IOException {
+        Map<String, String> sums = new HashMap<String, String>();
+        for (String path : paths) {
+            File file = new File(root, path);
+            if (file.isFile()) sums.put(path, MD5.sum(file, -1));
+        }
+        return sums;
+    }
+
+    /**
+     * Hash every file under a directory.
+     * @param root      The directory to hash
+     * @param suffix    Only hash files whose names end with this, null for all
+     * @return Map of the paths relative to root, separated by '/', to the MD5
+     *  sums of the files
+     * @throws IOException if a file cannot be read
+     */
+    public static Map<String, String> of (File root, String suffix)
+            throws IOException {
+        File[] files = root.listFiles();
+        if (files == null) throw new IOException("Not a directory: "+ root);
+        Map<String, String> sums = new HashMap<String, String>();
+        hash(files, "", suffix, sums);
+        return sums;
+    }
+
+    /**
+     * Hash every file under a directory.
+     * @param root  The directory to hash
+     * @return Map of the paths relative to root to the MD5 sums of the files
+     * @throws IOException if a file cannot be read
+     */
+    public static Map<String, String> of (File root) throws IOException {
+        return of(root, (String) null);
+    }
+
+    private static void hash (File[] files, String prefix, String suffix,
+            Map<String, String> sums) throws IOException {
+        for (File file : files) {
+            String path = prefix + file.getName();
+            if (file.isDirectory()) {
+                File[] children = file.listFiles();
+                if (children != null) hash(children, path +"/", suffix, sums);
+            }
+            else if (suffix == null || path.endsWith(suffix)) {
+                sums.put(path, MD5.sum(file, -1));
+            }
+        }
+    }
+}
@@ -1,37 +1,373 @@
 package tnic.util;
 
-import java.net.MalformedURLException;
-import java.net.URL;
-import java.io.BufferedReader;
-import java.io.InputStreamReader;
+import tnic.config.Env;
+
 import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
+import com.google.appengine.api.urlfetch.FetchOptions;
+import com.google.appengine.api.urlfetch.HTTPHeader;
+import com.google.appengine.api.urlfetch.HTTPMethod;
+import com.google.appengine.api.urlfetch.HTTPRequest;
+import com.google.appengine.api.urlfetch.HTTPResponse;
+import com.google.appengine.api.urlfetch.URLFetchService;
+import com.google.appengine.api.urlfetch.URLFetchServiceFactory;
+
+/**
+ * HTTP client for tnic apps, over the URL Fetch service. Requests give up
+ * after Env.HTTP_DEADLINE milliseconds and follow redirects. GET responses go
+ * through the HTTPCache. Every request can also be sent asynchronously, which
+ * lets a script fan out:
+ *
+ *   var a = HTTP.fetch(url1), b = HTTP.fetch(url2);
+ *   a.get().body + b.get().body
+ */
 public class HTTP {
-   /**
-    * Send an HTTP GET request.
-    */
-   public static String get (String urlStr) {
+    private static final String DEFAULT_CHARSET = "UTF-8";
+    private static final Charset UTF8 = Charset.forName(DEFAULT_CHARSET);
+
+    /**
+     * Holds the URL Fetch service. Created on first use.
+     */
+    private static class Fetch {
+        private static final URLFetchService instance =
+            URLFetchServiceFactory.getURLFetchService();
+    }
+
+    /**
+     * A response: its status, headers and body. Immutable, so cached
+     * responses are shared.
+     */
+    public static class Response {
+        private final int status;
+        private final Map<String, String> headers;
+        private final byte[] body;
+
+        Response (int status, Map<String, String> headers, byte[] body) {
+            this.status  = status;
+            this.headers = Collections.unmodifiableMap(headers);
+            this.body    = body;
+        }
+
+        public int getStatus () {
+            return this.status;
+        }
+
+        /**
+         * Get a response header. Repeated headers are joined by commas.
+         * @param name  The header name, in any case
+         * @return the header value, or null
+         */
+        public String getHeader (String name) {
+            return this.headers.get(name.toLowerCase());
+        }
+
+        /**
+         * Get the response headers by their lower case names.
+         */
+        public Map<String, String> getHeaders () {
+            return this.headers;
+        }
+
+        public byte[] getBytes () {
+            return this.body.clone();
+        }
+
+        /**
+         * Get the body decoded by the charset of its Content-Type, UTF-8 by
+         * default.
+         * @return the body as a String
+         */
+        public String getBody () {
+            try {
+                return new String(this.body, charset(getHeader("Content-Type")));
+            }
+            catch (UnsupportedEncodingException e) {
+                return new String(this.body, UTF8);
+            }
+        }
+
+        public boolean isOk () {
+            return this.status >= 200 && this.status < 300;
+        }
+
+        int size () {
+            return this.body.length;
+        }
+    }
+
+    /**
+     * Send an HTTP GET request.
+     * @param url   The URL to get
+     * @return the body of the response, or null on failure or an error
+     *  status
+     */
+    public static String get (String url) {
+        return body(send("GET", url, null, null));
+    }
+
+    /**
+     * Send an HTTP POST request with an empty body.
+     */
+    public static String post (String url) {
+        return post(url, "");
+    }
+
+    /**
+     * Send an HTTP POST request of form data.
+     * @param url   The URL to post to
+     * @param body  The url-encoded form data
+     * @return the body of the response, or null on failure or an error
+     *  status
+     */
+    public static String post (String url, String body) {
+        return post(url, body, "application/x-www-form-urlencoded");
+    }
+
+    /**
+     * Send an HTTP POST request.
+     * @param url           The URL to post to
+     * @param body          The request body
+     * @param contentType   The type of the body; text is sent as UTF-8
+     * @return the body of the response, or null on failure or an error
+     *  status
+     */
+    public static String post (String url, String body, String contentType) {
+        return body(send("POST", url, body, contentType));
+    }
+
+    /**
+     * Send an HTTP GET request without blocking.
+     * @param url   The URL to get
+     * @return Future of the Response
+     */
+    public static Future<Response> fetch (String url) {
+        return fetch("GET", url, null, null);
+    }
+
+    /**
+     * Send an HTTP request without blocking. A GET is answered from the
+     * HTTPCache like a blocking request.
+     * @param method        The request method
+     * @param url           The URL to request
+     * @param body          The request body, or null
+     * @param contentType   The type of the body, or null
+     * @return Future of the Response
+     */
+    public static Future<Response> fetch (final String method, final String url,
+            final String body, final String contentType) {
+        boolean get = "GET".equals(method);
+        final HTTPCache.Cached cached = get ? HTTPCache.lookup(url) : null;
+        if (cached != null && cached.isFresh()) {
+            return done(new Callable<Response>() {
+                public Response call () {
+                    return cached.getResponse();
+                }
+            });
+        }
+        final HTTPRequest request;
         try {
-            StringBuilder buf = new StringBuilder();
-            URL url = new URL(urlStr);
-            BufferedReader reader = new BufferedReader(new InputStreamReader(url.openStream()));
-            String line;
+            request = prepare(method, url, body, contentType, cached);
+        }
+        catch (final IOException e) {
+            return done(new Callable<Response>() {
+                public Response call () throws IOException {
+                    throw e;
+                }
+            });
+        }
+        return new Pending(method, url, cached,
+            Fetch.instance.fetchAsync(request));
+    }
+
+    /**
+     * Get many URLs in parallel.
+     * @param urls  The URLs to get
+     * @return the Response for each URL, null where the request failed
+     */
+    public static Response[] getAll (String[] urls) {
+        List<Future<Response>> futures = new ArrayList<Future<Response>>();
+        for (String url : urls) futures.add(fetch(url));
 
-            while ((line = reader.readLine()) != null) {
-                buf.append(line);
+        Response[] responses = new Response[urls.length];
+        for (int i = 0; i < urls.length; i++) {
+            try {
+                responses[i] = futures.get(i).get();
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+            catch (ExecutionException e) {
+                Env.log.warning (urls[i] +": "+ e.getCause());
             }
-            reader.close();
-            return buf.toString();
         }
-        catch (MalformedURLException e) {
-            e.printStackTrace();
+        return responses;
+    }
+
+    /**
+     * Send an HTTP request. A GET is answered from the HTTPCache while the
+     * cached response is fresh, and revalidates it once it is stale. Any
+     * other method drops the cached response of the URL.
+     * @param method        The request method
+     * @param url           The URL to request
+     * @param body          The request body, or null
+     * @param contentType   The type of the body, or null
+     * @return the Response, whatever its status
+     */
+    public static Response request (String method, String url, String body,
+            String contentType) throws IOException {
+        boolean get = "GET".equals(method);
+        HTTPCache.Cached cached = get ? HTTPCache.lookup(url) : null;
+        if (cached != null && cached.isFresh()) return cached.getResponse();
+
+        HTTPRequest request = prepare(method, url, body, contentType, cached);
+        return received(method, url, cached, Fetch.instance.fetch(request));
+    }
+
+    private static HTTPRequest prepare (String method, String url, String body,
+            String contentType, HTTPCache.Cached cached) throws IOException {
+        HTTPMethod m;
+        try {
+            m = HTTPMethod.valueOf(method);
+        }
+        catch (IllegalArgumentException e) {
+            throw new IOException("Unsupported method: "+ method);
+        }
+        FetchOptions options = FetchOptions.Builder
+            .withDeadline(Env.HTTP_DEADLINE / 1000.0)
+            .followRedirects();
+        HTTPRequest request = new HTTPRequest(new URL(url), m, options);
+        if (cached != null) cached.addConditions(request);
+
+        if (body != null) {
+            request.setPayload(body.getBytes(DEFAULT_CHARSET));
+            if (contentType != null) {
+                request.setHeader(new HTTPHeader("Content-Type",
+                    contentType.contains("charset") ? contentType
+                        : contentType +"; charset="+ DEFAULT_CHARSET));
+            }
+        }
+        return request;
+    }
+
+    /**
+     * Turn what URL Fetch returned into a Response, caching it if it answers
+     * a GET, and dropping the cached response of the URL otherwise.
+     */
+    private static Response received (String method, String url,
+            HTTPCache.Cached cached, HTTPResponse fetched) {
+        byte[] content = fetched.getContent();
+        Response response = new Response(fetched.getResponseCode(),
+            headers(fetched), (content == null) ? new byte[0] : content);
+        if ("GET".equals(method)) return HTTPCache.store(url, response, cached);
+        HTTPCache.invalidate(url);
+        return response;
+    }
+
+    private static Response send (String method, String url, String body,
+            String contentType) {
+        try {
+            return request(method, url, body, contentType);
         }
         catch (IOException e) {
-            e.printStackTrace();
+            Env.log.warning (method +" "+ url +": "+ e.toString ());
+            return null;
+        }
+    }
+
+    private static String body (Response response) {
+        if (response == null || response.getStatus() >= 400) return null;
+        return response.getBody();
+    }
+
+    private static Map<String, String> headers (HTTPResponse fetched) {
+        Map<String, String> headers = new HashMap<String, String>();
+        for (HTTPHeader header : fetched.getHeaders()) {
+            String name = header.getName().toLowerCase();
+            String value = headers.get(name);
+            headers.put(name, (value == null) ? header.getValue()
+                : value +", "+ header.getValue());
+        }
+        return headers;
+    }
+
+    private static Future<Response> done (Callable<Response> result) {
+        FutureTask<Response> task = new FutureTask<Response>(result);
+        task.run();
+        return task;
+    }
+
+    /**
+     * A request sent with fetchAsync. Its Response is made, and cached, once.
+     */
+    private static class Pending implements Future<Response> {
+        private final String method;
+        private final String url;
+        private final HTTPCache.Cached cached;
+        private final Future<HTTPResponse> future;
+        private Response response = null;
+
+        Pending (String method, String url, HTTPCache.Cached cached,
+                Future<HTTPResponse> future) {
+            this.method = method;
+            this.url    = url;
+            this.cached = cached;
+            this.future = future;
+        }
+
+        public boolean cancel (boolean mayInterrupt) {
+            return this.future.cancel(mayInterrupt);
+        }
+
+        public boolean isCancelled () {
+            return this.future.isCancelled();
+        }
+
+        public boolean isDone () {
+            return this.future.isDone();
+        }
+
+        public Response get ()
+                throws InterruptedException, ExecutionException {
+            return response(this.future.get());
+        }
+
+        public Response get (long timeout, TimeUnit unit)
+                throws InterruptedException, ExecutionException, TimeoutException {
+            return response(this.future.get(timeout, unit));
+        }
+
+        private synchronized Response response (HTTPResponse fetched) {
+            if (this.response == null) {
+                this.response = received(this.method, this.url, this.cached, fetched);
+            }
+            return this.response;
+        }
+    }
+
+    private static String charset (String contentType) {
+        if (contentType != null) {
+            for (String param : contentType.split(";")) {
+                param = param.trim();
+                if (param.toLowerCase().startsWith("charset=")) {
+                    return param.substring(8).replace("\"", "").trim();
+                }
+            }
         }
-        return null;
-   }
-   public static String post (String urlStr) {
-        return null;
-   }
+        return DEFAULT_CHARSET;
+    }
 }
@@ -0,0 +1,269 @@
+package tnic.util;
+
+import tnic.config.Env;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.appengine.api.urlfetch.HTTPHeader;
+import com.google.appengine.api.urlfetch.HTTPRequest;
+
+/**
+ * In-process cache of the GET responses of tnic.util.HTTP, following the
+ * caching headers of each response as a shared cache does. A 200 response is
+ * fresh for its s-maxage or max-age, or until it Expires. Responses marked
+ * no-store or private, with Vary: *, or larger than Env.HTTP_CACHE_MAX_BYTES
+ * are not cached, nor are responses that can be neither fresh nor
+ * revalidated. A stale response, or one marked no-cache, is revalidated with
+ * its ETag and Last-Modified date, and a 304 answer makes it fresh again. At
+ * most Env.HTTP_CACHE_SIZE responses are held, least recently used evicted
+ * first.
+ */
+public class HTTPCache {
+    private static final String DATE_FORMAT = "EEE, dd MMM yyyy HH:mm:ss zzz";
+
+    private static final AtomicLong hits          = new AtomicLong();
+    private static final AtomicLong misses        = new AtomicLong();
+    private static final AtomicLong revalidations = new AtomicLong();
+
+    private static final Map<String, Cached> entries =
+        new LinkedHashMap<String, Cached>(16, 0.75f, true) {
+            protected boolean removeEldestEntry (Map.Entry<String, Cached> eldest) {
+                return size() > Env.HTTP_CACHE_SIZE;
+            }
+        };
+
+    /**
+     * A cached response and the time it stops being fresh.
+     */
+    public static class Cached {
+        private final HTTP.Response response;
+        private final long expires;
+
+        Cached (HTTP.Response response, long expires) {
+            this.response = response;
+            this.expires  = expires;
+        }
+
+        public HTTP.Response getResponse () {
+            return this.response;
+        }
+
+        public boolean isFresh () {
+            return System.currentTimeMillis() < this.expires;
+        }
+
+        /**
+         * Make a request conditional on the validators of this response.
+         */
+        void addConditions (HTTPRequest request) {
+            String etag = response.getHeader("ETag");
+            String modified = response.getHeader("Last-Modified");
+            if (etag != null) {
+                request.setHeader(new HTTPHeader("If-None-Match", etag));
+            }
+            if (modified != null) {
+                request.setHeader(new HTTPHeader("If-Modified-Since", modified));
+            }
+        }
+    }
+
+    /**
+     * Look up the cached response of a URL, fresh or not.
+     * @param url   The URL
+     * @return Cached, or null if the URL is not cached
+     */
+    public static Cached lookup (String url) {
+        if (Env.HTTP_CACHE_SIZE <= 0) return null;
+        Cached entry;
+        synchronized (entries) {
+            entry = entries.get(url);
+        }
+        if (entry != null && entry.isFresh()) hits.incrementAndGet();
+        else misses.incrementAndGet();
+        return entry;
+    }
+
+    /**
+     * Cache the response to a GET if its headers allow it. A 304 answer to a
+     * revalidation refreshes the cached response instead.
+     * @param url       The URL
+     * @param response  The response received
+     * @param cached    The entry that was revalidated, or null
+     * @return the response to use: the cached one after a 304
+     */
+    public static HTTP.Response store (String url, HTTP.Response response,
+            Cached cached) {
+        if (cached != null && response.getStatus() == 304) {
+            revalidations.incrementAndGet();
+            HTTP.Response refreshed = merge(cached.getResponse(), response);
+            put(url, refreshed, expires(refreshed));
+            return refreshed;
+        }
+        if (response.getStatus() != 200 || !storable(response)) {
+            invalidate(url);
+            return response;
+        }
+        long expires = expires(response);
+        if (expires > System.currentTimeMillis()
+                || response.getHeader("ETag") != null
+                || response.getHeader("Last-Modified") != null) {
+            put(url, response, expires);
+        }
+        else {
+            invalidate(url);
+        }
+        return response;
+    }
+
+    /**
+     * Drop the cached response of a URL.
+     * @param url   The URL
+     */
+    public static void invalidate (String url) {
+        synchronized (entries) {
+            entries.remove(url);
+        }
+    }
+
+    /**
+     * Drop every cached response.
+     */
+    public static void clear () {
+        synchronized (entries) {
+            entries.clear();
+        }
+    }
+
+    public static long hits () {
+        return hits.get();
+    }
+
+    public static long misses () {
+        return misses.get();
+    }
+
+    public static long revalidations () {
+        return revalidations.get();
+    }
+
+    public static int size () {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    /**
+     * Construct the cache counters as JSON
+     * @return JSON string of the counters
+     */
+    public static String stats () {
+        return "({ size: "+ size() +", hits: "+ hits() +", misses: "+ misses()
+            +", revalidations: "+ revalidations() +" })";
+    }
+
+    private static void put (String url, HTTP.Response response, long expires) {
+        if (Env.HTTP_CACHE_SIZE <= 0) return;
+        synchronized (entries) {
+            entries.put(url, new Cached(response, expires));
+        }
+    }
+
+    private static boolean storable (HTTP.Response response) {
+        if (response.size() > Env.HTTP_CACHE_MAX_BYTES) return false;
+        if ("*".equals(response.getHeader("Vary"))) return false;
+        Map<String, String> cc = cacheControl(response);
+        return !cc.containsKey("no-store") && !cc.containsKey("private");
+    }
+
+    /**
+     * Compute when a response stops being fresh, from the time it was
+     * received.
+     */
+    private static long expires (HTTP.Response response) {
+        long now = System.currentTimeMillis();
+        Map<String, String> cc = cacheControl(response);
+        if (cc.containsKey("no-cache")) return now;
+
+        long age = seconds(response.getHeader("Age"));
+        if (age < 0) age = 0;
+        long maxAge = seconds(cc.get("s-maxage"));
+        if (maxAge < 0) maxAge = seconds(cc.get("max-age"));
+        if (maxAge >= 0) return now + (maxAge - age) * 1000;
+
+        /* an invalid Expires, such as Expires: 0, is in the past */
+        long expires = date(response.getHeader("Expires"), 0);
+        if (expires < 0) return now;
+        long date = date(response.getHeader("Date"), -1);
+        /* Expires is relative to the clock of the server */
+        return now + expires - ((date < 0) ? now : date) - age * 1000;
+    }
+
+    /**
+     * Take the headers of a 304 answer over those of the cached response.
+     */
+    private static HTTP.Response merge (HTTP.Response cached,
+            HTTP.Response notModified) {
+        Map<String, String> headers = new HashMap<String, String>(cached.getHeaders());
+        headers.putAll(notModified.getHeaders());
+        headers.remove("content-length");
+        if (cached.getHeader("Content-Length") != null) {
+            headers.put("content-length", cached.getHeader("Content-Length"));
+        }
+        return new HTTP.Response(cached.getStatus(), headers, cached.getBytes());
+    }
+
+    private static Map<String, String> cacheControl (HTTP.Response response) {
+        Map<String, String> directives = new HashMap<String, String>();
+        String header = response.getHeader("Cache-Control");
+        if (header == null) return directives;
+        for (String directive : header.split(",")) {
+            directive = directive.trim().toLowerCase();
+            int eq = directive.indexOf('=');
+            if (eq < 0) {
+                directives.put(directive, "");
+            }
+            else {
+                directives.put(directive.substring(0, eq).trim(),
+                    directive.substring(eq + 1).trim().replace("\"", ""));
+            }
+        }
+        return directives;
+    }
+
+    private static long seconds (String value) {
+        if (value == null) return -1;
+        try {
+            return Long.parseLong(value.trim());
+        }
+        catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Parse an HTTP date.
+     * @param value     The header value, or null
+     * @param invalid   What to return if the value is not a date
+     * @return milliseconds since the epoch, or -1 if there is no value
+     */
+    static long date (String value, long invalid) {
+        if (value == null) return -1;
+        SimpleDateFormat format = new SimpleDateFormat(DATE_FORMAT, Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("GMT"));
+        try {
+            Date date = format.parse(value.trim());
+            return date.getTime();
+        }
+        catch (ParseException e) {
+            return invalid;
+        }
+    }
+}
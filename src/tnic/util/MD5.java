@@ -18,9 +18,8 @@
 package tnic.util;
 
 import java.io.*;
-import java.net.*;
-import java.util.*;
-import java.text.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.security.*;
 
 public class MD5 {
@@ -28,7 +27,27 @@ public class MD5 {
     // < 308,032 bytes
     //public static long SCOUR_MD5_BYTE_LIMIT = 10000;
     public static int SCOUR_MD5_BYTE_LIMIT = (300 * 1024);
-    private static MessageDigest md = null;
+
+    private static final int BUFFER_SIZE = 8 * 1024;
+
+    /* files at least this large are memory-mapped for hashing */
+    public static int MAP_THRESHOLD = 64 * 1024;
+    private static final long MAP_WINDOW = 16 * 1024 * 1024;
+
+    private static final char [] HEX = "0123456789abcdef".toCharArray ();
+
+    /* MessageDigest is not thread-safe, so each thread has its own */
+    private static final ThreadLocal<MessageDigest> digests =
+        new ThreadLocal<MessageDigest> () {
+            protected MessageDigest initialValue () {
+                try {
+                    return MessageDigest.getInstance ("MD5");
+                }
+                catch (NoSuchAlgorithmException e) {
+                    throw new IllegalStateException (e.getMessage ());
+                }
+            }
+        };
 
     /**
      *  Method:     sum 
@@ -52,69 +71,130 @@ public class MD5 {
         return sum (input, -1);
     }
 
+    /**
+     *  Method:     sum 
+     *  Purpose:    calculate the MD5 of at most the first limit
+     *              bytes of input.
+     *  @param      input   the bytes from which to calculate the sum
+     *  @param      limit   the number of bytes to hash, -1 for all
+     *  @return     the MD5 checksum
+     */
     public static String sum (byte [] input, int limit) {
-        try {
-            if (md == null)
-                md = MessageDigest.getInstance ("MD5");
+        MessageDigest md = digest ();
+        md.update (input, 0,
+            (limit == -1 || limit > input.length) ? input.length : limit);
+        return hex (md.digest ());
+    }
 
-            md.reset ();
-            byte [] digest;
+    /**
+     *  Method:     sum 
+     *  Purpose:    calculate the MD5 of at most the first limit
+     *              bytes of a stream, without buffering them. The
+     *              stream is not closed.
+     *  @param      in      the stream to read
+     *  @param      limit   the number of bytes to hash, -1 for all
+     *  @return     the MD5 checksum
+     *  @throws     IOException on IO error
+     */
+    public static String sum (InputStream in, int limit)
+        throws IOException {
+        MessageDigest md = digest ();
+        byte [] b = new byte [BUFFER_SIZE];
+        long remaining = (limit == -1) ? Long.MAX_VALUE : limit;
+        int num;
 
-            if (limit == -1) {
-                digest = md.digest (input);
-            }
-            else {
-                md.update (input, 0, 
-                    limit > input.length ? input.length : limit);
-                digest = md.digest ();
+        while (remaining > 0
+            && (num = in.read (b, 0, (int) Math.min (b.length, remaining))) != -1)
+            {
+            md.update (b, 0, num);
+            remaining -= num;
             }
 
-            StringBuffer hexString = new StringBuffer (); 
+        return hex (md.digest ());
+    }
+
+    /**
+     *  Method:     sum 
+     *  Purpose:    calculate the MD5 of at most the first limit
+     *              bytes of a channel, from its current position.
+     *              The channel is not closed.
+     *  @param      ch      the channel to read
+     *  @param      limit   the number of bytes to hash, -1 for all
+     *  @return     the MD5 checksum
+     *  @throws     IOException on IO error
+     */
+    public static String sum (FileChannel ch, int limit)
+        throws IOException {
+        MessageDigest md = digest ();
+        ByteBuffer b = ByteBuffer.allocate (BUFFER_SIZE);
+        long remaining = (limit == -1) ? Long.MAX_VALUE : limit;
 
-            for (int i = 0; i < digest.length; i++) {
-                hexString.append (hexDigit (digest [i])); 
+        while (remaining > 0)
+            {
+            b.clear ();
+            if (remaining < b.capacity ()) b.limit ((int) remaining);
+            int num = ch.read (b);
+            if (num == -1) break;
+            b.flip ();
+            md.update (b);
+            remaining -= num;
             }
 
-            return hexString.toString ();
-        }
-        catch (NoSuchAlgorithmException e) {
-            throw new IllegalStateException (e.getMessage ());
-        }
+        return hex (md.digest ());
     }
 
     /**
-     *  Method:     hexDigit 
-     *  Purpose:    convert a hex digit to a String, used
-     *              by sum.
-     *  @param      x   the digit to translate
-     *  @return     the hex code for the digit
+     *  Method:     sum 
+     *  Purpose:    calculate the MD5 of at most the first limit
+     *              bytes of a file. Files of MAP_THRESHOLD bytes
+     *              or more are memory-mapped rather than copied
+     *              through a buffer.
+     *  @param      f       the file to read
+     *  @param      limit   the number of bytes to hash, -1 for all
+     *  @return     the MD5 checksum
+     *  @throws     IOException on IO error
      */
-    static private String hexDigit (byte x) {
-        StringBuffer sb = new StringBuffer ();
-        char c;
-
-        // First nibble
-        c = (char) ((x >> 4) & 0xf);
-        if (c > 9) {
-            c = (char) ((c - 10) + 'a');
-        } 
-        else {
-            c = (char) (c + '0');
-        }
+    public static String sum (File f, int limit)
+        throws IOException {
+        FileInputStream in = new FileInputStream (f);
+        try {
+            FileChannel ch = in.getChannel ();
+            long size = ch.size ();
+            if (limit != -1 && limit < size) size = limit;
+            if (size < MAP_THRESHOLD) return sum (ch, limit);
 
-        sb.append (c);
+            MessageDigest md = digest ();
+            for (long pos = 0; pos < size; pos += MAP_WINDOW)
+                {
+                md.update (ch.map (FileChannel.MapMode.READ_ONLY,
+                    pos, Math.min (MAP_WINDOW, size - pos)));
+                }
+            return hex (md.digest ());
+        }
+        finally {
+            in.close ();
+        }
+    }
 
-        // Second nibble
-        c = (char) (x & 0xf);
-        if (c > 9) {
-            c = (char)((c - 10) + 'a');
-        } 
-        else {
-            c = (char)(c + '0');
+    /**
+     *  Method:     hex 
+     *  Purpose:    convert a digest to its lower case hex form.
+     *  @param      digest  the digest bytes
+     *  @return     the hex string
+     */
+    static String hex (byte [] digest) {
+        char [] c = new char [digest.length * 2];
+        for (int i = 0; i < digest.length; i++) {
+            c [2 * i]     = HEX [(digest [i] >> 4) & 0xf];
+            c [2 * i + 1] = HEX [digest [i] & 0xf];
         }
+        return new String (c);
+    }
 
-        sb.append (c);
-        return sb.toString ();
+    private static MessageDigest digest () {
+        MessageDigest md = digests.get ();
+        md.reset ();
+        return md;
     }
 
     /**
@@ -130,31 +210,7 @@ public class MD5 {
      */
     public static String getFileMD5(File f)
         throws IOException {
-        String sum = null;
-        FileInputStream in = new FileInputStream (f.getAbsolutePath ());
-
-        byte [] b = new byte [1024];
-        int num = 0;
-        ByteArrayOutputStream out = new ByteArrayOutputStream ();
-
-        while ((num = in.read (b)) != -1)
-            {
-            out.write (b, 0, num);
-
-            if (out.size () > SCOUR_MD5_BYTE_LIMIT)
-                {
-                sum = sum (out.toByteArray (), SCOUR_MD5_BYTE_LIMIT);
-                break;
-                }
-            }
-
-        if (sum == null)
-            sum = sum (out.toByteArray (), SCOUR_MD5_BYTE_LIMIT);
-
-        in.close ();
-        out.close ();
-
-        return sum;
+        return sum (f, SCOUR_MD5_BYTE_LIMIT);
     }
 
     public static void main (String [] args)
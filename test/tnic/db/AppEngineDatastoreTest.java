@@ -0,0 +1,155 @@
+package tnic.db;
+
+import tnic.config.Env;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import javax.jdo.PersistenceManager;
+import javax.jdo.Query;
+
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Runs AppEngineDatastore against the local datastore. Every test stores 25
+ * Items in list "a" first; a release() between calls stands for the end of a
+ * request.
+ */
+public class AppEngineDatastoreTest {
+    private static final int ITEMS = 25;
+
+    private final LocalServiceTestHelper helper =
+        new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig());
+
+    private final AppEngineDatastore db = new AppEngineDatastore();
+
+    @Before
+    public void setUp () {
+        helper.setUp();
+        List<Item> items = new ArrayList<Item>();
+        for (int i = 0; i < ITEMS; i++) items.add(new Item("a", i));
+        db.makePersistentAll(items);
+        AppEngineDatastore.release();
+    }
+
+    @After
+    public void tearDown () {
+        AppEngineDatastore.release();
+        helper.tearDown();
+    }
+
+    @Test
+    public void pagesHandOffByCursor () {
+        List<Integer> positions = new ArrayList<Integer>();
+        String cursor = null;
+        int pages = 0;
+        do {
+            AppEngineDatastore.Page<Item> page = db.page(list(), cursor, 10, "a");
+            for (Item item : page.getItems()) positions.add(item.getPosition());
+            cursor = page.getCursor();
+            AppEngineDatastore.release();
+            pages++;
+        } while (cursor != null);
+
+        assertEquals(3, pages);
+        assertEquals(ITEMS, positions.size());
+        for (int i = 0; i < ITEMS; i++) {
+            assertEquals(i, positions.get(i).intValue());
+        }
+    }
+
+    @Test
+    public void lastFullPageHasCursorToEmptyPage () {
+        AppEngineDatastore.Page<Item> page = db.page(list(), null, ITEMS, "a");
+        assertEquals(ITEMS, page.getItems().size());
+        assertTrue(page.hasMore());
+
+        page = db.page(list(), page.getCursor(), ITEMS, "a");
+        assertTrue(page.getItems().isEmpty());
+        assertFalse(page.hasMore());
+    }
+
+    @Test
+    public void streamReadsEveryPage () {
+        long calls = AppEngineDatastore.calls();
+        Iterator<Item> items = db.stream(list(), 7, "a");
+        int expected = 0;
+        while (items.hasNext()) {
+            assertEquals(expected++, items.next().getPosition());
+        }
+        assertEquals(ITEMS, expected);
+        assertEquals(4, AppEngineDatastore.calls() - calls);
+    }
+
+    @Test
+    public void existsFindsMatches () {
+        assertTrue(db.exists(Item.class, "list == l", "String l", "a"));
+        assertTrue(db.exists(Item.class,
+            "list == l && position == p", "String l, int p", "a", 24));
+        assertFalse(db.exists(Item.class, "list == l", "String l", "b"));
+    }
+
+    @Test
+    public void releaseRollsBackOpenTransaction () {
+        PersistenceManager pm = AppEngineDatastore.pm();
+        pm.currentTransaction().begin();
+        pm.makePersistent(new Item("tx", 0));
+        AppEngineDatastore.release();
+
+        assertTrue(pm.isClosed());
+        assertNotSame(pm, AppEngineDatastore.pm());
+        assertFalse(db.exists(Item.class, "list == l", "String l", "tx"));
+    }
+
+    @Test
+    public void releaseKeepsOnePersistenceManagerPerRequest () {
+        long opened = AppEngineDatastore.opened();
+        PersistenceManager pm = AppEngineDatastore.pm();
+        assertSame(pm, new AppEngineDatastore().getPersistenceManager());
+        AppEngineDatastore.release();
+        assertTrue(pm.isClosed());
+        assertEquals(1, AppEngineDatastore.opened() - opened);
+    }
+
+    @Test
+    public void entitiesAreSentInBatches () {
+        int size = Env.DATASTORE_BATCH_SIZE;
+        Env.DATASTORE_BATCH_SIZE = 10;
+        try {
+            List<Entity> entities = new ArrayList<Entity>();
+            for (int i = 0; i < ITEMS; i++) {
+                Entity entity = new Entity("Batched");
+                entity.setProperty("position", i);
+                entities.add(entity);
+            }
+            long calls = AppEngineDatastore.calls();
+            List<Key> keys = db.put(entities);
+            assertEquals(3, AppEngineDatastore.calls() - calls);
+            assertEquals(ITEMS, db.get(keys).size());
+
+            db.delete(keys);
+            assertTrue(db.get(keys).isEmpty());
+        }
+        finally {
+            Env.DATASTORE_BATCH_SIZE = size;
+        }
+    }
+
+    private static Query list () {
+        Query query = AppEngineDatastore.pm().newQuery(Item.class);
+        query.setFilter("list == l");
+        query.declareParameters("String l");
+        query.setOrdering("position asc");
+        return query;
+    }
+}
@@ -0,0 +1,36 @@
+package tnic.db;
+
+import javax.jdo.annotations.IdGeneratorStrategy;
+import javax.jdo.annotations.IdentityType;
+import javax.jdo.annotations.PersistenceCapable;
+import javax.jdo.annotations.Persistent;
+import javax.jdo.annotations.PrimaryKey;
+
+/**
+ * Persistent class queried by AppEngineDatastoreTest.
+ */
+@PersistenceCapable(identityType = IdentityType.APPLICATION)
+public class Item {
+    @PrimaryKey
+    @Persistent(valueStrategy = IdGeneratorStrategy.IDENTITY)
+    private Long id;
+
+    @Persistent
+    private String list;
+
+    @Persistent
+    private int position;
+
+    public Item (String list, int position) {
+        this.list     = list;
+        this.position = position;
+    }
+
+    public Long getId () {
+        return this.id;
+    }
+
+    public int getPosition () {
+        return this.position;
+    }
+}
@@ -0,0 +1,248 @@
+package tnic.editor;
+
+import tnic.config.Env;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.servlet.ServletContext;
+import javax.servlet.ServletInputStream;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalMemcacheServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Drives the editor Servlet the way war/editor/js/tnic.js does: load a
+ * file, save a patch against what was loaded, and load it again.
+ */
+public class ServletTest {
+    private static final String SEPARATOR = System.getProperty("line.separator");
+
+    private static File root;
+
+    private final LocalServiceTestHelper helper = new LocalServiceTestHelper(
+        new LocalDatastoreServiceTestConfig(), new LocalMemcacheServiceTestConfig());
+
+    private final Servlet servlet = new Servlet();
+
+    /**
+     * What a request got back.
+     */
+    private static class Answer {
+        int status = HttpServletResponse.SC_OK;
+        final Map<String, String> headers = new HashMap<String, String>();
+        final ByteArrayOutputStream body = new ByteArrayOutputStream();
+
+        String etag () {
+            String etag = headers.get("ETag");
+            return (etag == null) ? null : etag.replace("\"", "");
+        }
+
+        String text () throws IOException {
+            return body.toString("UTF-8");
+        }
+    }
+
+    @BeforeClass
+    public static void setRoot () throws IOException {
+        root = File.createTempFile("tnic", "");
+        root.delete();
+        root.mkdir();
+        Env.SERVLET_CONTEXT = (ServletContext) stub(ServletContext.class,
+            new InvocationHandler() {
+                public Object invoke (Object p, Method m, Object[] args) {
+                    return "getRealPath".equals(m.getName())
+                        ? root.getPath() : null;
+                }
+            });
+    }
+
+    @Before
+    public void setUp () {
+        helper.setUp();
+    }
+
+    @After
+    public void tearDown () {
+        helper.tearDown();
+    }
+
+    @Test
+    public void patchSaveAfterLoadIsStored () throws Exception {
+        write("/load.js", "var a = 1;\nvar b = 2;");
+
+        Answer loaded = get("/load.js");
+        assertEquals("var a = 1;\nvar b = 2;"+ SEPARATOR, loaded.text());
+
+        /* as tnic.js load() and save() */
+        String base = loaded.text().replaceAll("\\r?\\n$", "");
+        String text = "var a = 1;\nvar b = 3;";
+        int start = 0;
+        while (base.charAt(start) == text.charAt(start)) start++;
+        Answer saved = post("/load.js", "base", loaded.etag(),
+            "start", String.valueOf(start), "end", String.valueOf(base.length()),
+            "text", text.substring(start));
+        assertEquals(HttpServletResponse.SC_OK, saved.status);
+        assertNotNull(saved.etag());
+
+        Answer reloaded = get("/load.js");
+        assertEquals(text + SEPARATOR, reloaded.text());
+        assertEquals(saved.etag(), reloaded.etag());
+    }
+
+    @Test
+    public void patchOutOfRangeIsBadRequest () throws Exception {
+        write("/range.js", "abc");
+        Answer loaded = get("/range.js");
+        Answer saved = post("/range.js", "base", loaded.etag(),
+            "start", "1", "end", "4", "text", "x");
+        assertEquals(HttpServletResponse.SC_BAD_REQUEST, saved.status);
+    }
+
+    @Test
+    public void patchAgainstOldVersionIsConflict () throws Exception {
+        write("/old.js", "abc");
+        Answer loaded = get("/old.js");
+        post("/old.js", "c", "abd");
+        Answer saved = post("/old.js", "base", loaded.etag(),
+            "start", "0", "end", "1", "text", "x");
+        assertEquals(HttpServletResponse.SC_CONFLICT, saved.status);
+    }
+
+    @Test
+    public void bodySaveAnswersWithETag () throws Exception {
+        write("/body.js", "abc");
+        Answer saved = new Answer();
+        servlet.doPost(body("/body.js", "  var c = 4;\n"),
+            response(saved));
+        assertEquals(HttpServletResponse.SC_OK, saved.status);
+        assertNotNull(saved.etag());
+
+        Answer reloaded = get("/body.js");
+        assertEquals("var c = 4;"+ SEPARATOR, reloaded.text());
+        assertEquals(saved.etag(), reloaded.etag());
+    }
+
+    private Answer get (String file) throws Exception {
+        Answer answer = new Answer();
+        servlet.doGet(request(file, "GET"), response(answer));
+        return answer;
+    }
+
+    private Answer post (String file, String... params) throws Exception {
+        Answer answer = new Answer();
+        servlet.doPost(request(file, "POST", params), response(answer));
+        return answer;
+    }
+
+    private static void write (String path, String contents) throws IOException {
+        OutputStreamWriter out = new OutputStreamWriter(
+            new FileOutputStream(new File(root, path)), "UTF-8");
+        try {
+            out.write(contents);
+        }
+        finally {
+            out.close();
+        }
+    }
+
+    private static HttpServletRequest request (String file, final String method,
+            String... params) {
+        final Map<String, String> values = new HashMap<String, String>();
+        values.put("f", file);
+        for (int i = 0; i < params.length; i += 2) {
+            values.put(params[i], params[i + 1]);
+        }
+        return (HttpServletRequest) stub(HttpServletRequest.class,
+            new InvocationHandler() {
+                public Object invoke (Object p, Method m, Object[] args) {
+                    if ("getParameter".equals(m.getName())) {
+                        return values.get(args[0]);
+                    }
+                    if ("getMethod".equals(m.getName())) return method;
+                    return null;
+                }
+            });
+    }
+
+    /* a text/plain POST with the given body */
+    private static HttpServletRequest body (final String file, String body)
+            throws IOException {
+        final ByteArrayInputStream bytes =
+            new ByteArrayInputStream(body.getBytes("UTF-8"));
+        final ServletInputStream in = new ServletInputStream() {
+            public int read () {
+                return bytes.read();
+            }
+        };
+        return (HttpServletRequest) stub(HttpServletRequest.class,
+            new InvocationHandler() {
+                public Object invoke (Object p, Method m, Object[] args) {
+                    String name = m.getName();
+                    if ("getParameter".equals(name)) {
+                        return "f".equals(args[0]) ? file : null;
+                    }
+                    if ("getMethod".equals(name)) return "POST";
+                    if ("getContentType".equals(name)) {
+                        return "text/plain; charset=UTF-8";
+                    }
+                    if ("getInputStream".equals(name)) return in;
+                    return null;
+                }
+            });
+    }
+
+    private static HttpServletResponse response (final Answer answer) {
+        final ServletOutputStream out = new ServletOutputStream() {
+            public void write (int b) {
+                answer.body.write(b);
+            }
+        };
+        final PrintWriter writer = new PrintWriter(out, true);
+        return (HttpServletResponse) stub(HttpServletResponse.class,
+            new InvocationHandler() {
+                public Object invoke (Object p, Method m, Object[] args) {
+                    String name = m.getName();
+                    if ("setStatus".equals(name)) {
+                        answer.status = (Integer) args[0];
+                    }
+                    else if ("setHeader".equals(name)) {
+                        answer.headers.put((String) args[0], (String) args[1]);
+                    }
+                    else if ("getOutputStream".equals(name)) {
+                        return out;
+                    }
+                    else if ("getWriter".equals(name)) {
+                        return writer;
+                    }
+                    return null;
+                }
+            });
+    }
+
+    private static Object stub (Class<?> type, InvocationHandler handler) {
+        return Proxy.newProxyInstance(ServletTest.class.getClassLoader(),
+            new Class<?>[] { type }, handler);
+    }
+}
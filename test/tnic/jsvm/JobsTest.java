@@ -0,0 +1,109 @@
+package tnic.jsvm;
+
+import tnic.config.Env;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+import javax.servlet.ServletContext;
+
+import com.google.appengine.api.taskqueue.dev.QueueStateInfo;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalMemcacheServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.appengine.tools.development.testing.LocalTaskQueueTestConfig;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Submits jobs to the local Task Queue and runs their tasks by hand, as the
+ * jsvm Servlet does for a jobrun request.
+ */
+public class JobsTest {
+    private static File root;
+
+    private final LocalServiceTestHelper helper = new LocalServiceTestHelper(
+        new LocalDatastoreServiceTestConfig(),
+        new LocalMemcacheServiceTestConfig(),
+        new LocalTaskQueueTestConfig()
+            .setQueueXmlPath("war/WEB-INF/queue.xml")
+            .setDisableAutoTaskExecution(true));
+
+    @BeforeClass
+    public static void setRoot () throws IOException {
+        root = File.createTempFile("tnic", "");
+        root.delete();
+        new File(root, "apps").mkdirs();
+        OutputStreamWriter out = new OutputStreamWriter(
+            new FileOutputStream(new File(root, "apps/add.js")), "UTF-8");
+        try {
+            out.write("$argv.a + $argv.b");
+        }
+        finally {
+            out.close();
+        }
+        Env.JSVM_THREAD_POOL = "jsvm-thread-pool";
+        Env.SERVLET_CONTEXT = (ServletContext) Proxy.newProxyInstance(
+            JobsTest.class.getClassLoader(), new Class<?>[] { ServletContext.class },
+            new InvocationHandler() {
+                public Object invoke (Object p, Method m, Object[] args) {
+                    return "getRealPath".equals(m.getName())
+                        ? root.getPath() : null;
+                }
+            });
+    }
+
+    @Before
+    public void setUp () {
+        helper.setUp();
+    }
+
+    @After
+    public void tearDown () {
+        helper.tearDown();
+    }
+
+    @Test
+    public void jobIsPendingUntilItsTaskRuns () throws Exception {
+        Job job = Jobs.submit("/apps/add.js", "({ a: 1, b: 2 })");
+        assertNotNull(job);
+        assertEquals(1, queued());
+        assertEquals(Job.PENDING, Jobs.poll(job.getId(), 0).getStatus());
+
+        Jobs.runQueued(job.getId(), job.getApp(), job.getArgv());
+        Job done = Jobs.poll(job.getId(), 0);
+        assertEquals(Job.DONE, done.getStatus());
+        assertEquals("(new Number(3))", done.getResult());
+    }
+
+    @Test
+    public void unknownJobIsNull () throws Exception {
+        assertNull(Jobs.poll("no-such-job", 0));
+        assertNull(Jobs.poll("no-such-job", 300));
+    }
+
+    @Test
+    public void failingAppCompletesWithError () throws Exception {
+        Job job = Jobs.submit("/apps/missing.js", null);
+        Jobs.runQueued(job.getId(), job.getApp(), job.getArgv());
+        Job done = Jobs.poll(job.getId(), 0);
+        assertEquals(Job.DONE, done.getStatus());
+        assertTrue(done.getResult().contains("error"));
+    }
+
+    private static int queued () {
+        QueueStateInfo queue = LocalTaskQueueTestConfig.getLocalTaskQueue()
+            .getQueueStateInfo().get(Env.JSVM_THREAD_POOL);
+        return queue.getCountTasks();
+    }
+}
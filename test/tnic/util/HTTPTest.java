@@ -0,0 +1,254 @@
+package tnic.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.appengine.tools.development.testing.LocalURLFetchServiceTestConfig;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Runs HTTP and HTTPCache against a stub server, through the local URL Fetch
+ * service.
+ */
+public class HTTPTest {
+    private static HttpServer server;
+    private static String base;
+
+    /* requests the stub server received, by path */
+    private static final Map<String, AtomicInteger> hits =
+        new ConcurrentHashMap<String, AtomicInteger>();
+    private static final AtomicInteger notModified = new AtomicInteger();
+
+    private final LocalServiceTestHelper helper =
+        new LocalServiceTestHelper(new LocalURLFetchServiceTestConfig());
+
+    @BeforeClass
+    public static void startServer () throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.setExecutor(Executors.newFixedThreadPool(8));
+        server.createContext("/", new HttpHandler() {
+            public void handle (HttpExchange x) throws IOException {
+                try {
+                    serve(x);
+                }
+                finally {
+                    x.close();
+                }
+            }
+        });
+        server.start();
+        base = "http://127.0.0.1:"+ server.getAddress().getPort();
+    }
+
+    @AfterClass
+    public static void stopServer () {
+        server.stop(0);
+    }
+
+    @Before
+    public void setUp () {
+        helper.setUp();
+        HTTPCache.clear();
+        hits.clear();
+        notModified.set(0);
+    }
+
+    @After
+    public void tearDown () {
+        helper.tearDown();
+    }
+
+    @Test
+    public void getDecodesTheCharsetOfTheResponse () {
+        assertEquals("caf\u00e9\n", HTTP.get(base +"/latin1"));
+    }
+
+    @Test
+    public void errorStatusGivesNullBody () throws IOException {
+        assertNull(HTTP.get(base +"/missing"));
+        HTTP.Response response = HTTP.request("GET", base +"/missing", null, null);
+        assertEquals(404, response.getStatus());
+        assertEquals("nope", response.getBody());
+    }
+
+    @Test
+    public void postSendsBodyAsUtf8 () {
+        assertEquals("a=1&b=\u00e9 application/x-www-form-urlencoded; charset=UTF-8",
+            HTTP.post(base +"/echo", "a=1&b=\u00e9"));
+    }
+
+    @Test
+    public void freshResponseIsServedFromCache () {
+        assertEquals("fresh", HTTP.get(base +"/fresh"));
+        assertEquals("fresh", HTTP.get(base +"/fresh"));
+        assertEquals(1, hits("/fresh"));
+    }
+
+    @Test
+    public void noCacheResponseIsRevalidated () {
+        for (int i = 0; i < 3; i++) {
+            assertEquals("etag body", HTTP.get(base +"/etag"));
+        }
+        assertEquals(3, hits("/etag"));
+        assertEquals(2, notModified.get());
+    }
+
+    @Test
+    public void futureExpiresIsServedFromCache () {
+        HTTP.get(base +"/expires");
+        HTTP.get(base +"/expires");
+        assertEquals(1, hits("/expires"));
+    }
+
+    @Test
+    public void invalidExpiresIsInThePast () {
+        HTTP.get(base +"/expired");
+        HTTP.get(base +"/expired");
+        assertEquals(2, hits("/expired"));
+    }
+
+    @Test
+    public void invalidDateIsIgnored () {
+        HTTP.get(base +"/baddate");
+        HTTP.get(base +"/baddate");
+        assertEquals(1, hits("/baddate"));
+    }
+
+    @Test
+    public void dateParsing () {
+        assertEquals(-1, HTTPCache.date(null, 0));
+        assertEquals(0, HTTPCache.date("0", 0));
+        assertEquals(-1, HTTPCache.date("yesterday", -1));
+        assertEquals(784111777000L,
+            HTTPCache.date("Sun, 06 Nov 1994 08:49:37 GMT", -1));
+    }
+
+    @Test
+    public void postDropsCachedResponse () throws IOException {
+        HTTP.get(base +"/fresh");
+        HTTP.request("POST", base +"/fresh", "", null);
+        HTTP.get(base +"/fresh");
+        assertEquals(3, hits("/fresh"));
+    }
+
+    @Test
+    public void getAllFetchesEveryUrl () {
+        HTTP.Response[] responses = HTTP.getAll(new String[] {
+            base +"/latin1", base +"/missing", "http://127.0.0.1:1/refused"
+        });
+        assertEquals("caf\u00e9\n", responses[0].getBody());
+        assertEquals(404, responses[1].getStatus());
+        assertNull(responses[2]);
+    }
+
+    @Test
+    public void fetchUsesCache () throws Exception {
+        assertEquals("fresh", HTTP.fetch(base +"/fresh").get().getBody());
+        assertEquals("fresh", HTTP.fetch(base +"/fresh").get().getBody());
+        assertEquals(1, hits("/fresh"));
+    }
+
+    private static int hits (String path) {
+        AtomicInteger count = hits.get(path);
+        return (count == null) ? 0 : count.get();
+    }
+
+    private static void serve (HttpExchange x) throws IOException {
+        String path = x.getRequestURI().getPath();
+        AtomicInteger count = hits.get(path);
+        if (count == null) {
+            hits.putIfAbsent(path, new AtomicInteger());
+            count = hits.get(path);
+        }
+        count.incrementAndGet();
+
+        if (path.equals("/latin1")) {
+            reply(x, 200, "caf\u00e9\n".getBytes("ISO-8859-1"),
+                "Content-Type", "text/plain; charset=ISO-8859-1",
+                "Cache-Control", "no-store");
+        }
+        else if (path.equals("/echo")) {
+            String body = new String(read(x.getRequestBody()), "UTF-8");
+            reply(x, 200, body +" "+ x.getRequestHeaders().getFirst("Content-Type"));
+        }
+        else if (path.equals("/fresh")) {
+            reply(x, 200, "fresh", "Cache-Control", "max-age=60");
+        }
+        else if (path.equals("/etag")) {
+            if ("\"v1\"".equals(x.getRequestHeaders().getFirst("If-None-Match"))) {
+                notModified.incrementAndGet();
+                x.getResponseHeaders().add("ETag", "\"v1\"");
+                x.sendResponseHeaders(304, -1);
+            }
+            else {
+                reply(x, 200, "etag body",
+                    "ETag", "\"v1\"", "Cache-Control", "no-cache");
+            }
+        }
+        else if (path.equals("/expires")) {
+            reply(x, 200, "expires", "Expires", date(60000));
+        }
+        else if (path.equals("/expired")) {
+            reply(x, 200, "expired", "Expires", "0", "ETag", "\"v1\"");
+        }
+        else if (path.equals("/baddate")) {
+            reply(x, 200, "bad date", "Date", "yesterday", "Expires", date(60000));
+        }
+        else {
+            reply(x, 404, "nope");
+        }
+    }
+
+    private static void reply (HttpExchange x, int status, String body,
+            String... headers) throws IOException {
+        reply(x, status, body.getBytes("UTF-8"), headers);
+    }
+
+    private static void reply (HttpExchange x, int status, byte[] body,
+            String... headers) throws IOException {
+        for (int i = 0; i < headers.length; i += 2) {
+            x.getResponseHeaders().add(headers[i], headers[i + 1]);
+        }
+        x.sendResponseHeaders(status, body.length);
+        OutputStream out = x.getResponseBody();
+        out.write(body);
+        out.close();
+    }
+
+    private static byte[] read (InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] b = new byte[1024];
+        int n;
+        while ((n = in.read(b)) != -1) out.write(b, 0, n);
+        return out.toByteArray();
+    }
+
+    private static String date (long offset) {
+        SimpleDateFormat format =
+            new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("GMT"));
+        return format.format(new Date(System.currentTimeMillis() + offset));
+    }
+}
@@ -29,6 +29,9 @@ var tnic = (function () {
         var cli               = null;
         var editorElem        = null;
         var editorWrapperElem = null;
+        /* the current file as last loaded or saved, and its ETag */
+        var baseText          = null;
+        var baseHash          = null;
         //var editorFrame       = [ ];
         //var cliWrapperElem    = null;
         //var hiddenKeyField    = null;
@@ -129,6 +132,35 @@ var tnic = (function () {
         }
         */
 
+        function etagOf (xhr) {
+            var etag = xhr ? xhr.getResponseHeader('ETag') : null;
+            return etag ? etag.replace(/^W\//, '').replace(/"/g, '') : null;
+        }
+
+        /* same as String.trim() on the server */
+        function trim (text) {
+            return text.replace(/^[\x00-\x20]+|[\x00-\x20]+$/g, '');
+        }
+
+        /* the one region that differs between two versions of a file */
+        function diff (from, to) {
+            var max   = Math.min(from.length, to.length);
+            var start = 0;
+            var end   = 0;
+            while (start < max && from.charAt(start) == to.charAt(start)) {
+                start++;
+            }
+            while (end < max - start && from.charAt(from.length - 1 - end)
+                    == to.charAt(to.length - 1 - end)) {
+                end++;
+            }
+            return {
+                start : start,
+                end   : from.length - end,
+                text  : to.substring(start, to.length - end)
+            };
+        }
+
         function applyWrapperDimensions () {
             /* calculate dimensions for cli wrapper */
             /*
@@ -194,17 +226,48 @@ var tnic = (function () {
                 var filename = $('#open_file').val()
                 editor.setCode('');
                 currentFile = filename;
+                baseText = baseHash = null;
             }
             if (currentFile === null) {
                 return;
             }
-            var url = baseUrl + "f=" + currentFile;
+            var url  = baseUrl + "f=" + currentFile;
+            var code = editor.getCode();
+            var text = trim(code);
+            var data = { c : code };
+
+            /* send only what changed since the last load or save */
+            if (baseHash !== null) {
+                if (text == baseText) {
+                    $('#currentFile').html(currentFile);
+                    return;
+                }
+                var patch = diff(baseText, text);
+                data = {
+                    base  : baseHash,
+                    start : patch.start,
+                    end   : patch.end,
+                    text  : patch.text
+                };
+            }
             $.ajax({
                 url : url,
                 type : "POST",
-                data : { c : editor.getCode() },
-                success : function (msg) {
+                data : data,
+                success : function (msg, status, xhr) {
+                    baseText = text;
+                    baseHash = etagOf(xhr);
                     $('#currentFile').html(currentFile);
+                },
+                error : function (xhr) {
+                    if (xhr.status == 409) {
+                        $('#menu').jGrowl(currentFile +
+                            " was changed elsewhere, reload it before saving");
+                    }
+                    else {
+                        $('#menu').jGrowl("Saving " + currentFile +
+                            " failed (" + xhr.status + ")");
+                    }
                 }
             });
         },
@@ -223,9 +286,12 @@ var tnic = (function () {
             var url = baseUrl + "f=" + filename;
             $.ajax({
                 url : url,
-                success : function (msg) {
+                success : function (msg, status, xhr) {
                     if (msg != "File Not Found") {
                         currentFile = filename;
+                        /* the server ends the file with a line separator */
+                        baseText = msg.replace(/\r?\n$/, '');
+                        baseHash = etagOf(xhr);
                     }
                     editor.setCode(msg);
                     $('#currentFile').html(currentFile);